@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long a client from {@link ZooKeeperRule#getClient()} takes to connect, including
+ * creating its session. The rule is restarted every iteration, since it keeps track of every client
+ * it hands out.
+ *
+ * @author juang
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientConnectBenchmark {
+
+    private final ZooKeeperRuleConfig ruleConfig = new InMemoryZooKeeperRuleConfig();
+
+    private ZooKeeperRule rule;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        rule = new LocalZooKeeperRule(ZooKeeperRule.generateRandomNamespace(), 0, ruleConfig);
+        rule.before();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        rule.after();
+    }
+
+    @Benchmark
+    public void getClient() throws InterruptedException {
+        CuratorFramework client = rule.getClient();
+        client.blockUntilConnected();
+        client.close();
+    }
+}
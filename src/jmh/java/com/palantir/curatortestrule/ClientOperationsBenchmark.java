@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of client operations against a rule's server. Reads and writes are
+ * synchronous, so each one pays a full round trip over the loopback connection, see
+ * {@link ClientTransportBenchmark} for how much of that is transport rather than server work.
+ *
+ * @author juang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientOperationsBenchmark {
+
+    private static final byte[] DATA = new byte[] { 1 };
+
+    @Param({ "default", "in-memory" })
+    public String config;
+
+    private ZooKeeperRule rule;
+    private CuratorFramework client;
+
+    @Setup
+    public void setup() throws Exception {
+        rule = new LocalZooKeeperRule(ZooKeeperRule.generateRandomNamespace(), 0, RuleConfigs.create(config));
+        rule.before();
+
+        client = rule.getClient();
+    }
+
+    @Setup(Level.Iteration)
+    public void createNodes() throws Exception {
+        // the created nodes would otherwise pile up for the whole trial
+        rule.reset();
+        client.create().forPath("/node", DATA);
+        client.create().forPath("/created");
+    }
+
+    @TearDown
+    public void tearDown() {
+        rule.after();
+    }
+
+    @Benchmark
+    public String create() throws Exception {
+        return client.create().withMode(CreateMode.PERSISTENT_SEQUENTIAL).forPath("/created/n", DATA);
+    }
+
+    @Benchmark
+    public byte[] getData() throws Exception {
+        return client.getData().forPath("/node");
+    }
+
+    @Benchmark
+    public Stat setData() throws Exception {
+        return client.setData().forPath("/node", DATA);
+    }
+}
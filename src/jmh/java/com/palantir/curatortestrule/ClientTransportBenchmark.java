@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what the loopback TCP transport used by {@link ZooKeeperRule#getClient()} costs per
+ * operation. Synchronous getData calls pay a full round trip each, while pipelined asynchronous calls
+ * only pay for the server's processing. The gap between the two is the latency that an in-process
+ * transport could remove.
+ * <p>
+ * ZooKeeper 3.4 has no way to plug in such a transport for the rule's clients only: its client
+ * socket is package-private and chosen by a JVM-wide system property. This gives the baseline for
+ * revisiting that on ZooKeeper 3.5, where the client socket is public.
+ *
+ * @author juang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientTransportBenchmark {
+
+    private static final int PIPELINE_DEPTH = 1000;
+
+    private ZooKeeperRule rule;
+    private ZooKeeper zooKeeper;
+    private String absolutePath;
+
+    @Setup
+    public void setup() throws Exception {
+        rule = new LocalZooKeeperRule(ZooKeeperRule.generateRandomNamespace(), 0, new InMemoryZooKeeperRuleConfig());
+        rule.before();
+
+        CuratorFramework client = rule.getClient();
+        client.create().forPath("/node", new byte[] { 1 });
+
+        zooKeeper = client.getZookeeperClient().getZooKeeper();
+        absolutePath = "/" + client.getNamespace() + "/node";
+    }
+
+    @TearDown
+    public void tearDown() {
+        rule.after();
+    }
+
+    @Benchmark
+    public byte[] synchronousGetData() throws Exception {
+        return zooKeeper.getData(absolutePath, false, null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public void pipelinedGetData() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(PIPELINE_DEPTH);
+        AsyncCallback.DataCallback callback = new AsyncCallback.DataCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+                done.countDown();
+            }
+        };
+
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            zooKeeper.getData(absolutePath, false, callback, null);
+        }
+        done.await();
+    }
+}
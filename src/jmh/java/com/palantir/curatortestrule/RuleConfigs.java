@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+/**
+ * Creates the {@link ZooKeeperRuleConfig}s that benchmarks are parameterized over.
+ *
+ * @author juang
+ */
+final class RuleConfigs {
+
+    private static final int POOL_SIZE = 2;
+
+    private RuleConfigs() {
+        // utility class
+    }
+
+    static ZooKeeperRuleConfig create(String name) {
+        switch (name) {
+            case "default":
+                return new DefaultZooKeeperRuleConfig(true);
+            case "in-memory":
+                return new InMemoryZooKeeperRuleConfig();
+            case "pooled":
+                return new PooledZooKeeperRuleConfig(POOL_SIZE);
+            default:
+                throw new IllegalArgumentException("Unknown rule config " + name);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long a {@link LocalZooKeeperRule} takes to start and shut down its server, which is
+ * what every test class using one pays.
+ *
+ * @author juang
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RuleLifecycleBenchmark {
+
+    @Param({ "default", "in-memory", "pooled" })
+    public String config;
+
+    private ZooKeeperRuleConfig ruleConfig;
+
+    @Setup
+    public void setup() {
+        ruleConfig = RuleConfigs.create(config);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (ruleConfig instanceof Closeable) {
+            ((Closeable) ruleConfig).close();
+        }
+    }
+
+    @Benchmark
+    public void localRule() {
+        ZooKeeperRule rule = new LocalZooKeeperRule(ZooKeeperRule.generateRandomNamespace(), 0, ruleConfig);
+        rule.before();
+        rule.after();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures acquiring and releasing a {@link SharedZooKeeperRule} from several threads at once, as
+ * happens when test classes run in parallel. A rule held for the whole trial keeps the server
+ * running, so this measures the bookkeeping around the shared server rather than its startup.
+ *
+ * @author juang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class SharedRuleBenchmark {
+
+    private final ZooKeeperRuleConfig ruleConfig = new InMemoryZooKeeperRuleConfig();
+
+    private ZooKeeperRule anchor;
+
+    @Setup
+    public void setup() {
+        anchor = newRule();
+        anchor.before();
+    }
+
+    @TearDown
+    public void tearDown() {
+        anchor.after();
+    }
+
+    @Benchmark
+    public void acquireRelease() {
+        ZooKeeperRule rule = newRule();
+        rule.before();
+        rule.after();
+    }
+
+    private ZooKeeperRule newRule() {
+        return new SharedZooKeeperRule(ZooKeeperRule.generateRandomNamespace(), 0, ruleConfig, 0);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.junit.jupiter.api.extension.BeforeEachCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.extension.ExtensionContext.Namespace;
+import org.junit.jupiter.api.extension.ExtensionContext.Store;
+import org.junit.jupiter.api.extension.ParameterContext;
+import org.junit.jupiter.api.extension.ParameterResolver;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A JUnit 5 extension that runs ZooKeeper servers for tests and injects {@link CuratorFramework}
+ * parameters into test methods and {@code @BeforeEach} methods. Each test gets clients in its own
+ * random namespace, which are closed automatically, and whose nodes are deleted after the test. A
+ * {@link ZooKeeperRule} parameter gives access to the test's rule, for example for
+ * {@link ZooKeeperRule#getConnectedClient(long, java.util.concurrent.TimeUnit)}.
+ * <p>
+ * The {@link Scope} decides how long a server lives: for a single test, for all tests of a class, or
+ * for the whole launcher session. A test with its own server gets a {@link LocalZooKeeperRule}. The
+ * other scopes share servers through {@link SharedZooKeeperRule}: every test gets a
+ * {@link SharedZooKeeperRule} on the extension's port, and another one, kept in the store of the
+ * class context or the root context, holds on to the server until JUnit closes that context. Tests
+ * therefore also share the server with any other {@link SharedZooKeeperRule} on the same port, and
+ * lingering and sharing between JVMs are configured the same way. Since every test has its own
+ * namespace and clients, the extension is safe to use with junit.jupiter.execution.parallel.enabled.
+ * <p>
+ * {@code @ExtendWith(ZooKeeperExtension.class)} gives every test class a server with an
+ * {@link InMemoryZooKeeperRuleConfig}. Other scopes and configs are registered through a field:
+ *
+ * <pre>
+ * &#64;RegisterExtension
+ * static final ZooKeeperExtension ZOOKEEPER = new ZooKeeperExtension(Scope.SESSION, CONFIG);
+ * </pre>
+ *
+ * WARNING: Faults injected through the rule of a test, such as
+ * {@link ZooKeeperRule#dropConnections()}, hit every test that shares the server. Use
+ * {@link Scope#METHOD} for such tests. As with {@link SharedZooKeeperRule}, extensions sharing a port
+ * should use the same kind of {@link ZooKeeperRuleConfig}, since the first one to start the server
+ * decides its config.
+ *
+ * @author juang
+ */
+public final class ZooKeeperExtension implements BeforeEachCallback, ParameterResolver {
+
+    /**
+     * How long a server lives.
+     */
+    public enum Scope {
+        /** A new server for every test. */
+        METHOD,
+        /** A server for the tests of a class, or of a {@code @Nested} class. */
+        CLASS,
+        /** A server for every test class of the launcher session that uses the same port. */
+        SESSION
+    }
+
+    private static final ZooKeeperRuleConfig DEFAULT_CONFIG = new InMemoryZooKeeperRuleConfig();
+    private static final Namespace NAMESPACE = Namespace.create(ZooKeeperExtension.class);
+    private static final String TEST_RULE_KEY = "rule";
+    private static final String SERVER_KEY_PREFIX = "server-";
+
+    private final Scope scope;
+    private final int port;
+    private final ZooKeeperRuleConfig ruleConfig;
+
+    public ZooKeeperExtension() {
+        this(Scope.CLASS, DEFAULT_CONFIG);
+    }
+
+    /**
+     * Creates an extension whose servers use port 0, so that the OS picks their ports.
+     */
+    public ZooKeeperExtension(Scope scope, ZooKeeperRuleConfig ruleConfig) {
+        this(scope, 0, ruleConfig);
+    }
+
+    public ZooKeeperExtension(Scope scope, int port, ZooKeeperRuleConfig ruleConfig) {
+        Preconditions.checkArgument(scope != null);
+        Preconditions.checkArgument(port >= 0, "Port number must be positive");
+        Preconditions.checkArgument(ruleConfig != null);
+
+        this.scope = scope;
+        this.port = port;
+        this.ruleConfig = ruleConfig;
+    }
+
+    @Override
+    public void beforeEach(ExtensionContext context) {
+        String namespace = ZooKeeperRule.generateRandomNamespace();
+
+        TestRuleResource resource;
+        if (scope == Scope.METHOD) {
+            resource = new TestRuleResource(new LocalZooKeeperRule(namespace, port, ruleConfig), false);
+        } else {
+            ExtensionContext serverContext = scope == Scope.SESSION ? context.getRoot() : getClassContext(context);
+            serverContext.getStore(NAMESPACE).getOrComputeIfAbsent(SERVER_KEY_PREFIX + port,
+                    key -> new ServerResource(port, ruleConfig), ServerResource.class);
+
+            resource = new TestRuleResource(new SharedZooKeeperRule(namespace, port, ruleConfig), true);
+        }
+
+        resource.rule.before();
+        context.getStore(NAMESPACE).put(TEST_RULE_KEY, resource);
+    }
+
+    @Override
+    public boolean supportsParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+        Class<?> type = parameterContext.getParameter().getType();
+        return extensionContext.getTestMethod().isPresent()
+                && (type == CuratorFramework.class || type == ZooKeeperRule.class);
+    }
+
+    @Override
+    public Object resolveParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+        ZooKeeperRule rule = extensionContext.getStore(NAMESPACE).get(TEST_RULE_KEY, TestRuleResource.class).rule;
+        if (parameterContext.getParameter().getType() == ZooKeeperRule.class) {
+            return rule;
+        }
+        return rule.getClient();
+    }
+
+    /**
+     * Returns the context of the test's class. The parent of a test is not necessarily the class,
+     * since the invocations of a {@code @TestTemplate}, such as a {@code @RepeatedTest}, are nested in
+     * the context of the template method.
+     */
+    private static ExtensionContext getClassContext(ExtensionContext context) {
+        ExtensionContext classContext = context;
+        while (classContext.getTestMethod().isPresent() && classContext.getParent().isPresent()) {
+            classContext = classContext.getParent().get();
+        }
+        return classContext;
+    }
+
+    /**
+     * The rule of a single test, which JUnit closes after the test.
+     */
+    private static final class TestRuleResource implements Store.CloseableResource {
+        private final ZooKeeperRule rule;
+        private final boolean sharedServer;
+
+        private TestRuleResource(ZooKeeperRule rule, boolean sharedServer) {
+            this.rule = rule;
+            this.sharedServer = sharedServer;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (sharedServer) {
+                    rule.reset();
+                }
+            } finally {
+                rule.after();
+            }
+        }
+    }
+
+    /**
+     * Holds on to the shared server of a scope, and releases it once JUnit closes the scope.
+     */
+    private static final class ServerResource implements Store.CloseableResource {
+        private final SharedZooKeeperRule rule;
+
+        private ServerResource(int port, ZooKeeperRuleConfig ruleConfig) {
+            this.rule = new SharedZooKeeperRule(ZooKeeperRule.generateRandomNamespace(), port, ruleConfig);
+            this.rule.before();
+        }
+
+        @Override
+        public void close() {
+            rule.after();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.platform.engine.discovery.DiscoverySelectors.selectClass;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.junit.Test;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.platform.launcher.LauncherDiscoveryRequest;
+import org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder;
+import org.junit.platform.launcher.core.LauncherFactory;
+import org.junit.platform.launcher.listeners.SummaryGeneratingListener;
+import org.junit.platform.launcher.listeners.TestExecutionSummary;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Tests for {@link ZooKeeperExtension}, which run example test classes on the JUnit Platform.
+ *
+ * @author juang
+ */
+public final class ZooKeeperExtensionTests {
+
+    @Test
+    public void testClassScope() {
+        ClassScopeExample.SERVERS.clear();
+
+        TestExecutionSummary summary = run(false, ClassScopeExample.class);
+
+        assertEquals(summary.getFailures().toString(), 2, summary.getTestsSucceededCount());
+        assertEquals(1, ClassScopeExample.SERVERS.size());
+        assertShutDown(ClassScopeExample.SERVERS);
+    }
+
+    @Test
+    public void testClassScopeWithTestTemplates() {
+        TemplateClassScopeExample.SERVERS.clear();
+
+        TestExecutionSummary summary = run(false, TemplateClassScopeExample.class);
+
+        assertEquals(summary.getFailures().toString(), 4, summary.getTestsSucceededCount());
+        assertEquals(1, TemplateClassScopeExample.SERVERS.size());
+        assertShutDown(TemplateClassScopeExample.SERVERS);
+    }
+
+    @Test
+    public void testMethodScope() {
+        MethodScopeExample.SERVERS.clear();
+
+        TestExecutionSummary summary = run(false, MethodScopeExample.class);
+
+        assertEquals(summary.getFailures().toString(), 2, summary.getTestsSucceededCount());
+        assertEquals(2, MethodScopeExample.SERVERS.size());
+        assertShutDown(MethodScopeExample.SERVERS);
+    }
+
+    @Test
+    public void testSessionScopeInParallel() {
+        SessionScopeExample.SERVERS.clear();
+
+        TestExecutionSummary summary = run(true, SessionScopeExample.class, OtherSessionScopeExample.class);
+
+        assertEquals(summary.getFailures().toString(), 4, summary.getTestsSucceededCount());
+        assertEquals(1, SessionScopeExample.SERVERS.size());
+        assertShutDown(SessionScopeExample.SERVERS);
+    }
+
+    @Test
+    public void testSharesServerWithSharedRules() {
+        PortSessionScopeExample.SERVERS.clear();
+
+        SharedZooKeeperRule rule = new SharedZooKeeperRule("namespace1", PortSessionScopeExample.PORT,
+                new InMemoryZooKeeperRuleConfig());
+        rule.before();
+        try {
+            TestExecutionSummary summary = run(false, PortSessionScopeExample.class);
+
+            assertEquals(summary.getFailures().toString(), 2, summary.getTestsSucceededCount());
+            assertEquals(Collections.singleton(rule.getCnxnFactory()), PortSessionScopeExample.SERVERS);
+
+            // the rule still holds the server after the session released it
+            assertTrue(ZooKeeperServers.getServer(rule.getCnxnFactory()).isRunning());
+        } finally {
+            rule.after();
+        }
+        assertShutDown(PortSessionScopeExample.SERVERS);
+    }
+
+    private static TestExecutionSummary run(boolean parallel, Class<?>... testClasses) {
+        LauncherDiscoveryRequestBuilder request = LauncherDiscoveryRequestBuilder.request()
+                .configurationParameter("junit.jupiter.execution.parallel.enabled", Boolean.toString(parallel))
+                .configurationParameter("junit.jupiter.execution.parallel.mode.default", "concurrent");
+        for (Class<?> testClass : testClasses) {
+            request.selectors(selectClass(testClass));
+        }
+        LauncherDiscoveryRequest discoveryRequest = request.build();
+
+        SummaryGeneratingListener listener = new SummaryGeneratingListener();
+        LauncherFactory.create().execute(discoveryRequest, listener);
+        return listener.getSummary();
+    }
+
+    private static void assertShutDown(Set<ServerCnxnFactory> servers) {
+        for (ServerCnxnFactory server : servers) {
+            assertFalse(ZooKeeperServers.getServer(server).isRunning());
+        }
+    }
+
+    /**
+     * Creates the same node in every test, which only works if each test has its own namespace.
+     */
+    private static void createNode(ZooKeeperRule rule, CuratorFramework client, Set<ServerCnxnFactory> servers)
+            throws Exception {
+        servers.add(rule.getCnxnFactory());
+        client.create().forPath("/testpath", new byte[] { 1 });
+        assertEquals(1, client.getData().forPath("/testpath")[0]);
+    }
+
+    @ExtendWith(ZooKeeperExtension.class)
+    public static final class ClassScopeExample {
+        private static final Set<ServerCnxnFactory> SERVERS = Sets.newConcurrentHashSet();
+
+        private CuratorFramework setUpClient;
+
+        @BeforeEach
+        public void setUp(CuratorFramework client) {
+            this.setUpClient = client;
+        }
+
+        @org.junit.jupiter.api.Test
+        public void testFirst(ZooKeeperRule rule, CuratorFramework client) throws Exception {
+            createNode(rule, client, SERVERS);
+            assertTrue(setUpClient.checkExists().forPath("/testpath") != null);
+        }
+
+        @org.junit.jupiter.api.Test
+        public void testSecond(ZooKeeperRule rule, CuratorFramework client) throws Exception {
+            createNode(rule, client, SERVERS);
+        }
+    }
+
+    /**
+     * The invocations of a template are nested in the template's context, not the class context.
+     */
+    @ExtendWith(ZooKeeperExtension.class)
+    public static final class TemplateClassScopeExample {
+        private static final Set<ServerCnxnFactory> SERVERS = Sets.newConcurrentHashSet();
+
+        @RepeatedTest(2)
+        public void testFirst(ZooKeeperRule rule, CuratorFramework client) throws Exception {
+            createNode(rule, client, SERVERS);
+        }
+
+        @RepeatedTest(2)
+        public void testSecond(ZooKeeperRule rule, CuratorFramework client) throws Exception {
+            createNode(rule, client, SERVERS);
+        }
+    }
+
+    public static final class MethodScopeExample {
+        private static final Set<ServerCnxnFactory> SERVERS = Sets.newConcurrentHashSet();
+
+        @RegisterExtension
+        static final ZooKeeperExtension ZOOKEEPER =
+                new ZooKeeperExtension(ZooKeeperExtension.Scope.METHOD, new InMemoryZooKeeperRuleConfig());
+
+        @org.junit.jupiter.api.Test
+        public void testFirst(ZooKeeperRule rule, CuratorFramework client) throws Exception {
+            createNode(rule, client, SERVERS);
+        }
+
+        @org.junit.jupiter.api.Test
+        public void testSecond(ZooKeeperRule rule, CuratorFramework client) throws Exception {
+            createNode(rule, client, SERVERS);
+        }
+    }
+
+    public static final class SessionScopeExample {
+        static final Set<ServerCnxnFactory> SERVERS = Sets.newConcurrentHashSet();
+        static final ZooKeeperRuleConfig CONFIG = new InMemoryZooKeeperRuleConfig();
+
+        @RegisterExtension
+        static final ZooKeeperExtension ZOOKEEPER = new ZooKeeperExtension(ZooKeeperExtension.Scope.SESSION, CONFIG);
+
+        @org.junit.jupiter.api.Test
+        public void testFirst(ZooKeeperRule rule, CuratorFramework client) throws Exception {
+            createNode(rule, client, SERVERS);
+        }
+
+        @org.junit.jupiter.api.Test
+        public void testSecond(ZooKeeperRule rule, CuratorFramework client) throws Exception {
+            createNode(rule, client, SERVERS);
+        }
+    }
+
+    public static final class OtherSessionScopeExample {
+        @RegisterExtension
+        static final ZooKeeperExtension ZOOKEEPER =
+                new ZooKeeperExtension(ZooKeeperExtension.Scope.SESSION, SessionScopeExample.CONFIG);
+
+        @org.junit.jupiter.api.Test
+        public void testFirst(ZooKeeperRule rule, CuratorFramework client) throws Exception {
+            createNode(rule, client, SessionScopeExample.SERVERS);
+        }
+
+        @org.junit.jupiter.api.Test
+        public void testSecond(ZooKeeperRule rule, CuratorFramework client) throws Exception {
+            createNode(rule, client, SessionScopeExample.SERVERS);
+        }
+    }
+
+    public static final class PortSessionScopeExample {
+        static final int PORT = 20400;
+        static final Set<ServerCnxnFactory> SERVERS = Sets.newConcurrentHashSet();
+
+        @RegisterExtension
+        static final ZooKeeperExtension ZOOKEEPER = new ZooKeeperExtension(ZooKeeperExtension.Scope.SESSION, PORT,
+                new InMemoryZooKeeperRuleConfig());
+
+        @org.junit.jupiter.api.Test
+        public void testFirst(ZooKeeperRule rule, CuratorFramework client) throws Exception {
+            createNode(rule, client, SERVERS);
+        }
+
+        @org.junit.jupiter.api.Test
+        public void testSecond(ZooKeeperRule rule, CuratorFramework client) throws Exception {
+            createNode(rule, client, SERVERS);
+        }
+    }
+}
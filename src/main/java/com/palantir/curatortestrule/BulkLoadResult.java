@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How many nodes {@link ZooKeeperRule#bulkLoad(Iterable)} created, and how fast.
+ *
+ * @author juang
+ */
+public final class BulkLoadResult {
+
+    private final long nodeCount;
+    private final long elapsedNanos;
+
+    BulkLoadResult(long nodeCount, long elapsedNanos) {
+        this.nodeCount = nodeCount;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getNodeCount() {
+        return nodeCount;
+    }
+
+    public long getElapsed(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the number of nodes created per second.
+     */
+    public double getThroughput() {
+        return nodeCount / Math.max(elapsedNanos / 1e9, 1e-9);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d nodes in %d ms (%.0f nodes/s)", nodeCount, getElapsed(TimeUnit.MILLISECONDS),
+                getThroughput());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.io.Files;
+
+/**
+ * Creates large numbers of nodes by pipelining asynchronous creates over a single connection.
+ * <p>
+ * ZooKeeper processes the requests of a connection in order, so a node can be created right after
+ * its parent without waiting for the parent's response. The number of requests awaiting a response
+ * is bounded, so that neither the client's outgoing queue nor the server's backlog grow without
+ * limit. ZooKeeper 3.4 has no asynchronous multi(), and pipelining keeps the server just as busy.
+ *
+ * @author juang
+ */
+final class BulkLoader {
+
+    private BulkLoader() {
+        // utility class
+    }
+
+    /**
+     * Creates the nodes under {@code root}, which must exist, and fails on the first node that can't
+     * be created, after waiting for the requests already sent. The requests already sent are waited
+     * for as well if reading the nodes fails, so that no create is still in flight on return.
+     */
+    static BulkLoadResult load(ZooKeeper zooKeeper, String root, Iterator<ZNode> nodes, int maxInFlight)
+            throws KeeperException, InterruptedException {
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final AtomicReference<KeeperException> failure = new AtomicReference<>();
+        StringCallback callback = new StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                if (rc != KeeperException.Code.OK.intValue()) {
+                    failure.compareAndSet(null, KeeperException.create(KeeperException.Code.get(rc), path));
+                }
+                inFlight.release();
+            }
+        };
+
+        long startNanos = System.nanoTime();
+        long count = 0;
+        try {
+            while (nodes.hasNext() && failure.get() == null) {
+                ZNode node = nodes.next();
+                inFlight.acquire();
+                try {
+                    zooKeeper.create(root + node.getPath(), node.getData(), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                            CreateMode.PERSISTENT, callback, null);
+                } catch (RuntimeException e) {
+                    // the path was rejected before the request was sent
+                    inFlight.release();
+                    throw e;
+                }
+                count++;
+            }
+        } finally {
+            // every request sent gets a callback, if only because the connection was lost
+            inFlight.acquireUninterruptibly(maxInFlight);
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return new BulkLoadResult(count, elapsedNanos);
+    }
+
+    /**
+     * Creates the nodes of a text file with a path per line, optionally followed by a tab and the
+     * node's data as UTF-8. Empty lines are skipped. The file is streamed, so it can be larger than
+     * the heap.
+     */
+    static BulkLoadResult load(ZooKeeper zooKeeper, String root, File file, int maxInFlight)
+            throws KeeperException, InterruptedException, IOException {
+        try (BufferedReader reader = Files.newReader(file, Charsets.UTF_8)) {
+            return load(zooKeeper, root, readLines(reader, file), maxInFlight);
+        }
+    }
+
+    private static Iterator<ZNode> readLines(final BufferedReader reader, final File file) {
+        return new AbstractIterator<ZNode>() {
+            @Override
+            protected ZNode computeNext() {
+                String line;
+                try {
+                    do {
+                        line = reader.readLine();
+                    } while (line != null && line.isEmpty());
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not read " + file, e);
+                }
+
+                if (line == null) {
+                    return endOfData();
+                }
+
+                List<String> fields = Splitter.on('\t').limit(2).splitToList(line);
+                return fields.size() == 1
+                        ? ZNode.of(fields.get(0))
+                        : ZNode.of(fields.get(0), fields.get(1).getBytes(Charsets.UTF_8));
+            }
+        };
+    }
+}
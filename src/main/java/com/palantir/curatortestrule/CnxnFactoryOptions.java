@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.io.IOException;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.NettyServerCnxnFactory;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Chooses the connection factory of the servers of a single config, as opposed to ZooKeeper's
+ * zookeeper.serverCnxnFactory system property, which applies to every server in the JVM. This lets
+ * load tests with hundreds of clients use Netty next to tests that use NIO, and lets both be
+ * compared in the same run.
+ * <p>
+ * The NIO factory serves every connection from a single thread. The Netty factory accepts
+ * connections on boss threads and serves them on worker threads, whose numbers and socket buffer
+ * sizes can be set with the {@code with} methods. Instances are immutable.
+ *
+ * @author juang
+ */
+public final class CnxnFactoryOptions {
+
+    private static final CnxnFactoryOptions SYSTEM_DEFAULT = new CnxnFactoryOptions(null, 0, 0, 0, 0);
+
+    @CheckForNull
+    private final Class<? extends ServerCnxnFactory> cnxnFactoryClass;
+    private final int bossThreads;
+    private final int workerThreads;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+
+    private CnxnFactoryOptions(@CheckForNull Class<? extends ServerCnxnFactory> cnxnFactoryClass, int bossThreads,
+            int workerThreads, int receiveBufferSize, int sendBufferSize) {
+        this.cnxnFactoryClass = cnxnFactoryClass;
+        this.bossThreads = bossThreads;
+        this.workerThreads = workerThreads;
+        this.receiveBufferSize = receiveBufferSize;
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * Returns the factory chosen by the zookeeper.serverCnxnFactory system property, which is NIO if
+     * the property is not set.
+     */
+    public static CnxnFactoryOptions systemDefault() {
+        return SYSTEM_DEFAULT;
+    }
+
+    public static CnxnFactoryOptions nio() {
+        return of(NIOServerCnxnFactory.class);
+    }
+
+    /**
+     * Returns the Netty factory with Netty's defaults: one boss thread, and twice as many worker
+     * threads as there are processors.
+     */
+    public static CnxnFactoryOptions netty() {
+        return of(NettyServerCnxnFactory.class);
+    }
+
+    static CnxnFactoryOptions of(Class<? extends ServerCnxnFactory> cnxnFactoryClass) {
+        Preconditions.checkArgument(cnxnFactoryClass != null);
+        return new CnxnFactoryOptions(cnxnFactoryClass, 0, 0, 0, 0);
+    }
+
+    /**
+     * Sets the number of threads that accept connections. Netty only.
+     */
+    public CnxnFactoryOptions withBossThreads(int threads) {
+        checkNetty();
+        Preconditions.checkArgument(threads > 0, "Thread count must be positive");
+        return new CnxnFactoryOptions(cnxnFactoryClass, threads, workerThreads, receiveBufferSize, sendBufferSize);
+    }
+
+    /**
+     * Sets the number of threads that read requests and write responses. Netty only.
+     */
+    public CnxnFactoryOptions withWorkerThreads(int threads) {
+        checkNetty();
+        Preconditions.checkArgument(threads > 0, "Thread count must be positive");
+        return new CnxnFactoryOptions(cnxnFactoryClass, bossThreads, threads, receiveBufferSize, sendBufferSize);
+    }
+
+    /**
+     * Sets the sizes in bytes of the socket buffers of client connections, which default to the
+     * operating system's. Netty only.
+     */
+    public CnxnFactoryOptions withBufferSizes(int receiveBytes, int sendBytes) {
+        checkNetty();
+        Preconditions.checkArgument(receiveBytes > 0 && sendBytes > 0, "Buffer sizes must be positive");
+        return new CnxnFactoryOptions(cnxnFactoryClass, bossThreads, workerThreads, receiveBytes, sendBytes);
+    }
+
+    /**
+     * Creates an unstarted factory with these options.
+     */
+    ServerCnxnFactory create() throws IOException {
+        ServerCnxnFactory cnxnFactory = ServerCnxnFactories.create(cnxnFactoryClass);
+        if (cnxnFactory instanceof NettyServerCnxnFactory) {
+            ServerCnxnFactories.configureNetty((NettyServerCnxnFactory) cnxnFactory, bossThreads, workerThreads,
+                    receiveBufferSize, sendBufferSize);
+        }
+        return cnxnFactory;
+    }
+
+    private void checkNetty() {
+        Preconditions.checkState(cnxnFactoryClass != null
+                && NettyServerCnxnFactory.class.isAssignableFrom(cnxnFactoryClass),
+                "Only the Netty connection factory can be tuned");
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("cnxnFactoryClass", cnxnFactoryClass == null ? "system default" : cnxnFactoryClass.getName())
+                .add("bossThreads", bossThreads)
+                .add("workerThreads", workerThreads)
+                .add("receiveBufferSize", receiveBufferSize)
+                .add("sendBufferSize", sendBufferSize)
+                .toString();
+    }
+}
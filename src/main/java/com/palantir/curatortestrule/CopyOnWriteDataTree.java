@@ -0,0 +1,339 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.data.StatPersisted;
+import org.apache.zookeeper.server.DataNode;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A {@link DataTree} whose subtrees can be forked in constant time. A fork starts out as a copy of
+ * its base subtree that shares every node with it. Nodes are only copied into the fork the first
+ * time they are accessed through it, so the cost of a fork grows with the nodes a test touches
+ * rather than with the size of the base tree.
+ * <p>
+ * A node of the fork that hasn't been copied yet is only present as a name in the children of its
+ * parent, and copying it shares the data array of the base node, since ZooKeeper replaces data
+ * rather than modifying it. Deleting a node from the fork removes it from its parent like any other
+ * node, so its base node is never copied again.
+ * <p>
+ * The base tree must not change while it has forks, since the nodes a fork hasn't copied yet would
+ * see the changes. Ephemeral nodes of the base are not part of its forks. Snapshots of the tree
+ * leave out the nodes forks haven't copied.
+ *
+ * @author juang
+ */
+final class CopyOnWriteDataTree extends DataTree {
+
+    /**
+     * The base of each fork, by the root of the fork.
+     */
+    private final ConcurrentMap<String, String> forks = Maps.newConcurrentMap();
+
+    /**
+     * Guards copying nodes into forks, and deleting nodes from forks, so that a node that is being
+     * deleted can't be copied again.
+     */
+    private final Object copyLock = new Object();
+
+    /**
+     * Set while a snapshot is written, which must not copy the whole fork.
+     */
+    private final ThreadLocal<Boolean> serializing = new ThreadLocal<>();
+
+    /**
+     * Creates {@code forkRoot} as a fork of {@code baseRoot}. The parent of {@code forkRoot} must
+     * exist, and {@code forkRoot} itself must not.
+     */
+    void fork(String baseRoot, String forkRoot, long zxid) throws KeeperException {
+        Preconditions.checkArgument(!forkRoot.startsWith(baseRoot + "/") && !baseRoot.startsWith(forkRoot + "/"),
+                "A fork can't be nested in its base");
+
+        Stat stat = new Stat();
+        byte[] data = getData(baseRoot, stat, null);
+        List<ACL> acls = getACL(baseRoot, stat);
+        List<String> children = getChildren(baseRoot, null, null);
+
+        createNode(forkRoot, data, acls, 0, -1, zxid, System.currentTimeMillis());
+        DataNode root = super.getNode(forkRoot);
+        synchronized (root) {
+            for (String child : getPersistentChildren(baseRoot, children)) {
+                root.addChild(child);
+            }
+        }
+        forks.put(forkRoot, baseRoot);
+    }
+
+    /**
+     * Deletes {@code forkRoot} and the nodes copied into it, triggering their watches.
+     */
+    void discard(String forkRoot, long zxid) throws KeeperException {
+        Preconditions.checkArgument(forks.remove(forkRoot) != null, "%s is not a fork", forkRoot);
+
+        synchronized (copyLock) {
+            // only the nodes that were copied, children first
+            List<String> paths = Lists.newArrayList();
+            List<String> pending = Lists.newArrayList(forkRoot);
+            while (!pending.isEmpty()) {
+                String path = pending.remove(pending.size() - 1);
+                DataNode node = super.getNode(path);
+                if (node == null) {
+                    continue;
+                }
+
+                paths.add(path);
+                synchronized (node) {
+                    Set<String> children = node.getChildren();
+                    if (children != null) {
+                        for (String child : children) {
+                            pending.add(path + "/" + child);
+                        }
+                    }
+                }
+            }
+
+            for (String path : Lists.reverse(paths)) {
+                super.deleteNode(path, zxid);
+            }
+        }
+    }
+
+    boolean isFork(String path) {
+        return forks.containsKey(path);
+    }
+
+    @Override
+    public DataNode getNode(String path) {
+        DataNode node = super.getNode(path);
+        if (node != null || forks.isEmpty() || serializing.get() != null) {
+            return node;
+        }
+        return copy(path);
+    }
+
+    @Override
+    public String createNode(String path, byte[] data, List<ACL> acl, long ephemeralOwner, int parentCVersion,
+            long zxid, long time) throws KeeperException.NoNodeException, KeeperException.NodeExistsException {
+        getNode(parent(path));
+        return super.createNode(path, data, acl, ephemeralOwner, parentCVersion, zxid, time);
+    }
+
+    @Override
+    public void deleteNode(String path, long zxid) throws KeeperException.NoNodeException {
+        synchronized (copyLock) {
+            getNode(path);
+            super.deleteNode(path, zxid);
+        }
+    }
+
+    @Override
+    public Stat setData(String path, byte[] data, int version, long zxid, long time)
+            throws KeeperException.NoNodeException {
+        getNode(path);
+        return super.setData(path, data, version, zxid, time);
+    }
+
+    @Override
+    public byte[] getData(String path, Stat stat, Watcher watcher) throws KeeperException.NoNodeException {
+        getNode(path);
+        return super.getData(path, stat, watcher);
+    }
+
+    @Override
+    public Stat statNode(String path, Watcher watcher) throws KeeperException.NoNodeException {
+        getNode(path);
+        return super.statNode(path, watcher);
+    }
+
+    @Override
+    public List<String> getChildren(String path, Stat stat, Watcher watcher) throws KeeperException.NoNodeException {
+        getNode(path);
+        return super.getChildren(path, stat, watcher);
+    }
+
+    @Override
+    public Stat setACL(String path, List<ACL> acl, int version) throws KeeperException.NoNodeException {
+        getNode(path);
+        return super.setACL(path, acl, version);
+    }
+
+    @Override
+    public List<ACL> getACL(String path, Stat stat) throws KeeperException.NoNodeException {
+        getNode(path);
+        return super.getACL(path, stat);
+    }
+
+    @Override
+    public void setCversionPzxid(String path, int newCversion, long zxid) throws KeeperException.NoNodeException {
+        getNode(path);
+        super.setCversionPzxid(path, newCversion, zxid);
+    }
+
+    @Override
+    public void serialize(OutputArchive oa, String tag) throws IOException {
+        serializing.set(Boolean.TRUE);
+        try {
+            super.serialize(oa, tag);
+        } finally {
+            serializing.remove();
+        }
+    }
+
+    /**
+     * Copies the node at the given path from the base of its fork, along with any of its ancestors
+     * that haven't been copied yet. Returns null if the path is not in a fork, or if the fork has no
+     * such node.
+     */
+    @CheckForNull
+    private DataNode copy(String path) {
+        String forkRoot = getForkRoot(path);
+        if (forkRoot == null) {
+            return null;
+        }
+
+        DataNode parent = getNode(parent(path));
+        if (parent == null) {
+            return null;
+        }
+
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        String basePath = forks.get(forkRoot) + path.substring(forkRoot.length());
+
+        synchronized (copyLock) {
+            DataNode node = super.getNode(path);
+            if (node != null || super.getNode(parent(path)) != parent) {
+                // copied or deleted in the meantime
+                return node;
+            }
+
+            synchronized (parent) {
+                Set<String> siblings = parent.getChildren();
+                if (siblings == null || !siblings.contains(name)) {
+                    return null;
+                }
+            }
+
+            DataNode base = super.getNode(basePath);
+            if (base == null || base.stat.getEphemeralOwner() != 0) {
+                // the base changed or the node belongs to a session of the base, leave it out
+                synchronized (parent) {
+                    parent.removeChild(name);
+                }
+                return null;
+            }
+
+            Stat stat = new Stat();
+            byte[] data;
+            List<ACL> acls;
+            try {
+                data = super.getData(basePath, stat, null);
+                acls = super.getACL(basePath, stat);
+            } catch (KeeperException.NoNodeException e) {
+                synchronized (parent) {
+                    parent.removeChild(name);
+                }
+                return null;
+            }
+
+            List<String> baseChildren = null;
+            StatPersisted baseStat;
+            synchronized (base) {
+                baseStat = base.stat;
+                if (base.getChildren() != null) {
+                    baseChildren = Lists.newArrayList(base.getChildren());
+                }
+            }
+            HashSet<String> children = baseChildren == null ? null : getPersistentChildren(basePath, baseChildren);
+
+            node = new DataNode(parent, data, convertAcls(acls), copyStat(baseStat));
+            node.setChildren(children);
+            addDataNode(path, node);
+            return node;
+        }
+    }
+
+    /**
+     * Returns the children of the given base node that forks include, which leaves out ephemeral
+     * nodes, so that they don't show up in the children of a fork either.
+     */
+    private HashSet<String> getPersistentChildren(String basePath, List<String> children) {
+        HashSet<String> persistentChildren = new HashSet<>(children.size());
+        for (String child : children) {
+            DataNode base = super.getNode(basePath + "/" + child);
+            if (base != null && base.stat.getEphemeralOwner() == 0) {
+                persistentChildren.add(child);
+            }
+        }
+        return persistentChildren;
+    }
+
+    @CheckForNull
+    private String getForkRoot(String path) {
+        for (Map.Entry<String, String> fork : forks.entrySet()) {
+            if (path.startsWith(fork.getKey() + "/")) {
+                return fork.getKey();
+            }
+        }
+        return null;
+    }
+
+    private static String parent(String path) {
+        return path.substring(0, path.lastIndexOf('/'));
+    }
+
+    private static StatPersisted copyStat(StatPersisted stat) {
+        return new StatPersisted(stat.getCzxid(), stat.getMzxid(), stat.getCtime(), stat.getMtime(),
+                stat.getVersion(), stat.getCversion(), stat.getAversion(), stat.getEphemeralOwner(),
+                stat.getPzxid());
+    }
+
+    /**
+     * A {@link ZKDatabase} whose data tree is a {@link CopyOnWriteDataTree}.
+     */
+    static final class Database extends ZKDatabase {
+        Database(FileTxnSnapLog snapLog) {
+            super(snapLog);
+            this.dataTree = new CopyOnWriteDataTree();
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            this.dataTree = new CopyOnWriteDataTree();
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * A server shared by all JVMs on the machine that use the same directory, such as the forked test
+ * workers of a build. The first JVM to ask for a server starts it on port 0 and owns it, the others
+ * attach to it. Servers are identified by a key, which is the port the rules asked for.
+ * <p>
+ * The JVMs coordinate through files in the directory, all of which are guarded by file locks:
+ * <ul>
+ * <li>{@code zookeeper-<key>.lock} is locked while a JVM starts, attaches to or shuts down the
+ * server.</li>
+ * <li>{@code zookeeper-<key>.properties} holds the port of the running server.</li>
+ * <li>{@code zookeeper-<key>.owner} is locked by the owning JVM for as long as the server runs, so that
+ * a server left behind by a JVM that crashed can be detected.</li>
+ * <li>{@code zookeeper-<key>.lease-<id>} is locked by each attached JVM until it detaches.</li>
+ * </ul>
+ * The server lives inside the owning JVM, so the owner can only shut it down once every other JVM
+ * detached, and {@link #close()} waits for that.
+ *
+ * @author juang
+ */
+final class CrossProcessServer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CrossProcessServer.class);
+
+    private static final String PORT_PROPERTY = "port";
+    private static final String OWNER_PROPERTY = "owner";
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    /**
+     * How long the owner waits for other JVMs to detach before shutting down the server anyway, so
+     * that a hung JVM can't keep the owner from exiting.
+     */
+    private static final long DETACH_TIMEOUT_SECONDS = 60;
+
+    private final File directory;
+    private final int key;
+    private final int port;
+
+    @CheckForNull
+    private final ZooKeeperRuleConfig ruleConfig;
+
+    @CheckForNull
+    private final ServerCnxnFactory cnxnFactory;
+
+    /**
+     * The owner file for the owner, or the lease file for an attached JVM, which this JVM holds the
+     * lock on.
+     */
+    private final File lockFile;
+    private final FileLock lock;
+
+    private CrossProcessServer(File directory, int key, int port, @CheckForNull ZooKeeperRuleConfig ruleConfig,
+            @CheckForNull ServerCnxnFactory cnxnFactory, File lockFile, FileLock lock) {
+        this.directory = directory;
+        this.key = key;
+        this.port = port;
+        this.ruleConfig = ruleConfig;
+        this.cnxnFactory = cnxnFactory;
+        this.lockFile = lockFile;
+        this.lock = lock;
+    }
+
+    /**
+     * Attaches to the server with the given key, or starts it with the given config if no JVM is
+     * running it.
+     */
+    static CrossProcessServer acquire(File directory, int key, ZooKeeperRuleConfig ruleConfig) {
+        Preconditions.checkState(directory.isDirectory() || directory.mkdirs(),
+                "Could not create directory %s", directory);
+
+        FileLock coordinationLock = lock(coordinationFile(directory, key));
+        try {
+            CrossProcessServer server = attach(directory, key);
+            if (server == null) {
+                server = start(directory, key, ruleConfig);
+            }
+            return server;
+        } finally {
+            release(coordinationLock);
+        }
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    boolean isOwner() {
+        return cnxnFactory != null;
+    }
+
+    /**
+     * Returns the server if this JVM owns it, or null if it runs in another JVM.
+     */
+    @CheckForNull
+    ServerCnxnFactory getCnxnFactory() {
+        return cnxnFactory;
+    }
+
+    /**
+     * Detaches from the server, or shuts it down once no other JVM is attached to it if this JVM owns
+     * it. The owner waits at most {@value #DETACH_TIMEOUT_SECONDS} seconds for the other JVMs.
+     */
+    void close() {
+        if (!isOwner()) {
+            release(lock);
+            lockFile.delete();
+            LOGGER.debug("Detached from ZooKeeper server {} at port {}", key, port);
+            return;
+        }
+
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(DETACH_TIMEOUT_SECONDS);
+        while (true) {
+            FileLock coordinationLock = lock(coordinationFile(directory, key));
+            try {
+                boolean attached = hasLeases();
+                if (attached && System.nanoTime() - deadlineNanos > 0) {
+                    LOGGER.warn("Other JVMs did not detach from ZooKeeper server {} at port {} within {} seconds,"
+                            + " shutting it down anyway", key, port, DETACH_TIMEOUT_SECONDS);
+                    attached = false;
+                }
+
+                if (!attached) {
+                    LOGGER.debug("Shutting down ZooKeeper server {} at port {}", key, port);
+                    descriptorFile(directory, key).delete();
+                    release(lock);
+
+                    ZooKeeperServers.releaseServer(ruleConfig, cnxnFactory);
+                    ruleConfig.cleanup();
+                    return;
+                }
+            } finally {
+                release(coordinationLock);
+            }
+
+            LOGGER.debug("Waiting for other JVMs to detach from ZooKeeper server {} at port {}", key, port);
+            Uninterruptibles.sleepUninterruptibly(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @CheckForNull
+    private static CrossProcessServer attach(File directory, int key) {
+        File descriptor = descriptorFile(directory, key);
+        if (!descriptor.exists()) {
+            return null;
+        }
+
+        FileLock ownerLock = tryLock(ownerFile(directory, key));
+        if (ownerLock != null) {
+            // nobody holds the owner lock, so the owner died without cleaning up
+            LOGGER.debug("Discarding ZooKeeper server {} left behind by a JVM that exited", key);
+            release(ownerLock);
+            descriptor.delete();
+            return null;
+        }
+
+        Properties properties = readProperties(descriptor);
+        int port = Integer.parseInt(properties.getProperty(PORT_PROPERTY));
+
+        File leaseFile = new File(directory, "zookeeper-" + key + ".lease-" + UUID.randomUUID());
+        FileLock leaseLock = lock(leaseFile);
+
+        LOGGER.debug("Attached to ZooKeeper server {} at port {} owned by {}",
+                key, port, properties.getProperty(OWNER_PROPERTY));
+        return new CrossProcessServer(directory, key, port, null, null, leaseFile, leaseLock);
+    }
+
+    private static CrossProcessServer start(File directory, int key, ZooKeeperRuleConfig ruleConfig) {
+        File ownerFile = ownerFile(directory, key);
+        FileLock ownerLock = lock(ownerFile);
+
+        ServerCnxnFactory cnxnFactory;
+        try {
+            cnxnFactory = ruleConfig.getServer(0);
+        } catch (RuntimeException e) {
+            release(ownerLock);
+            throw e;
+        }
+
+        int port = cnxnFactory.getLocalPort();
+        Properties properties = new Properties();
+        properties.setProperty(PORT_PROPERTY, Integer.toString(port));
+        properties.setProperty(OWNER_PROPERTY, ManagementFactory.getRuntimeMXBean().getName());
+        writeProperties(properties, descriptorFile(directory, key));
+
+        LOGGER.debug("Started ZooKeeper server {} at port {} for sharing with other JVMs", key, port);
+        return new CrossProcessServer(directory, key, port, ruleConfig, cnxnFactory, ownerFile, ownerLock);
+    }
+
+    /**
+     * Returns true if another JVM is attached. Leases of JVMs that exited without detaching are
+     * deleted.
+     */
+    private boolean hasLeases() {
+        final String prefix = "zookeeper-" + key + ".lease-";
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return false;
+        }
+
+        boolean hasLeases = false;
+        for (File file : files) {
+            if (!file.getName().startsWith(prefix)) {
+                continue;
+            }
+
+            FileLock leaseLock = tryLock(file);
+            if (leaseLock == null) {
+                hasLeases = true;
+            } else {
+                release(leaseLock);
+                file.delete();
+            }
+        }
+        return hasLeases;
+    }
+
+    private static File coordinationFile(File directory, int key) {
+        return new File(directory, "zookeeper-" + key + ".lock");
+    }
+
+    private static File descriptorFile(File directory, int key) {
+        return new File(directory, "zookeeper-" + key + ".properties");
+    }
+
+    private static File ownerFile(File directory, int key) {
+        return new File(directory, "zookeeper-" + key + ".owner");
+    }
+
+    private static FileLock lock(File file) {
+        FileChannel channel = openChannel(file);
+        try {
+            return channel.lock();
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new RuntimeException("Could not lock " + file, e);
+        }
+    }
+
+    /**
+     * Returns null if another JVM holds the lock.
+     */
+    @CheckForNull
+    private static FileLock tryLock(File file) {
+        FileChannel channel = openChannel(file);
+        try {
+            FileLock fileLock = channel.tryLock();
+            if (fileLock == null) {
+                channel.close();
+            }
+            return fileLock;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new RuntimeException("Could not lock " + file, e);
+        }
+    }
+
+    private static FileChannel openChannel(File file) {
+        try {
+            return new RandomAccessFile(file, "rw").getChannel();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open " + file, e);
+        }
+    }
+
+    private static void release(FileLock fileLock) {
+        try {
+            fileLock.release();
+            fileLock.channel().close();
+        } catch (IOException e) {
+            LOGGER.warn("Could not release file lock", e);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Could not close file channel", e);
+        }
+    }
+
+    private static Properties readProperties(File file) {
+        Properties properties = new Properties();
+        try {
+            properties.load(new StringReader(Files.toString(file, Charsets.UTF_8)));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read " + file, e);
+        }
+        return properties;
+    }
+
+    private static void writeProperties(Properties properties, File file) {
+        StringWriter writer = new StringWriter();
+        try {
+            properties.store(writer, null);
+            Files.write(writer.toString(), file, Charsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write " + file, e);
+        }
+    }
+}
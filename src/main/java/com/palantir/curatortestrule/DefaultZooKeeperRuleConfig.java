@@ -20,27 +20,72 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.Set;
+import java.util.UUID;
 
-import org.apache.commons.io.FileUtils;
+import javax.annotation.CheckForNull;
+
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
 import org.apache.zookeeper.server.ServerCnxnFactory;
 import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.server.persistence.FileTxnLog;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 
 /**
  * Default implementation of {@link ZooKeeperRuleConfig} which uses a
  * {@link NoJMXZooKeeperServer} and uses temp directories for the {@link FileTxnSnapLog}.
+ * <p>
+ * The constructors give a server with ZooKeeper's defaults. {@link #builder()} tunes the server for
+ * tests instead, and {@link #fastTest()} is a preset for short-lived servers with many clients.
+ * <p>
+ * Each server gets its own directory for the transaction log and snapshots, which is deleted in the
+ * background on {@link #cleanup()} if enabled, so that rules don't wait for it.
  *
  * @author juang
  */
 public final class DefaultZooKeeperRuleConfig implements ZooKeeperRuleConfig {
     private static final Logger LOGGER = LoggerFactory.getLogger(LocalZooKeeperRule.class);
 
+    /**
+     * Transactions are written into the space preallocated before them, so the preallocation has
+     * to be at least as large as the largest transaction, which is bounded by jute.maxbuffer.
+     */
+    private static final long MIN_PREALLOC_SIZE = 1024 * 1024;
+
+    private static final int FAST_TEST_TICK_TIME = 200;
+
+    /**
+     * The transaction log preallocation last set by a config, or 0 if none did. ZooKeeper keeps the
+     * setting in a static field that it doesn't expose.
+     */
+    private static long jvmPreallocSize = 0;
+
+    /**
+     * The limit that ZooKeeper's connection factories apply unless maxClientCnxns is configured.
+     */
+    private static final int DEFAULT_MAX_CLIENT_CNXNS = 60;
+
     private final boolean cleanupOnExit;
+    private final int tickTime;
+    private final int minSessionTimeout;
+    private final int maxSessionTimeout;
+    private final int maxClientCnxns;
+    private final boolean forkable;
+
+    @CheckForNull
+    private final Long preallocSize;
+
+    private final CnxnFactoryOptions cnxnFactoryOptions;
+
+    @CheckForNull
+    private final File directory;
+
     private final Set<File> directoriesToCleanup = Sets.newConcurrentHashSet();
 
     public DefaultZooKeeperRuleConfig() {
@@ -48,46 +93,306 @@ public final class DefaultZooKeeperRuleConfig implements ZooKeeperRuleConfig {
     }
 
     public DefaultZooKeeperRuleConfig(boolean cleanupOnExit) {
-        this.cleanupOnExit = cleanupOnExit;
+        this(new Builder().cleanupOnExit(cleanupOnExit));
+    }
+
+    private DefaultZooKeeperRuleConfig(Builder builder) {
+        this.cleanupOnExit = builder.cleanupOnExit;
+        this.tickTime = builder.tickTime;
+        this.minSessionTimeout = builder.minSessionTimeout;
+        this.maxSessionTimeout = builder.maxSessionTimeout;
+        this.maxClientCnxns = builder.maxClientCnxns;
+        this.forkable = builder.forkable;
+        this.preallocSize = builder.preallocSize;
+        this.cnxnFactoryOptions = builder.cnxnFactoryOptions;
+        this.directory = builder.directory;
+    }
+
+    /**
+     * Returns a builder whose settings default to ZooKeeper's own defaults.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns a builder preset for short-lived test servers: a {@value #FAST_TEST_TICK_TIME} ms tick
+     * time, so that sessions can expire within a second, no limit on connections per host, so that
+     * load tests can open hundreds of clients, and the smallest transaction log preallocation, which
+     * applies to the whole JVM, see {@link Builder#preallocSize(long)}. The directories are cleaned up
+     * on {@link #cleanup()}.
+     */
+    public static Builder fastTest() {
+        return new Builder()
+                .tickTime(FAST_TEST_TICK_TIME)
+                .maxClientCnxns(0)
+                .preallocSize(MIN_PREALLOC_SIZE)
+                .cleanupOnExit(true);
     }
 
     @Override
     public ServerCnxnFactory getServer(int port) {
-        ZooKeeperServer zkServer = new NoJMXZooKeeperServer();
+        if (preallocSize != null) {
+            setJvmPreallocSize(preallocSize);
+        }
+
+        NoJMXZooKeeperServer zkServer = new NoJMXZooKeeperServer(forkable);
+        zkServer.setTickTime(tickTime);
+        zkServer.setMinSessionTimeout(minSessionTimeout);
+        zkServer.setMaxSessionTimeout(maxSessionTimeout);
+
+        final File serverDir = createServerDirectory();
+        if (cleanupOnExit) {
+            directoriesToCleanup.add(serverDir);
+        }
+
+        // a per-run directory is deleted on exit, possibly while this server is still shutting down
+        DirectoryCleaner.get().retain(serverDir);
+        zkServer.setShutdownListener(new Runnable() {
+            @Override
+            public void run() {
+                DirectoryCleaner.get().release(serverDir);
+            }
+        });
 
         FileTxnSnapLog ftxn;
         try {
-            File dataDir = Files.createTempDir();
-            File snapDir = Files.createTempDir();
-            if (cleanupOnExit) {
-                directoriesToCleanup.add(dataDir);
-                directoriesToCleanup.add(snapDir);
-            }
-            ftxn = new FileTxnSnapLog(dataDir, snapDir);
+            ftxn = new FileTxnSnapLog(new File(serverDir, "data"), new File(serverDir, "snap"));
         } catch (IOException e) {
+            directoriesToCleanup.remove(serverDir);
+            DirectoryCleaner.get().release(serverDir);
+            DirectoryCleaner.get().delete(serverDir);
             throw new RuntimeException(e);
         }
         zkServer.setTxnLogFactory(ftxn);
 
+        ServerCnxnFactory cnxnFactory = null;
         try {
-            ServerCnxnFactory cnxnFactory = ServerCnxnFactory.createFactory();
-            cnxnFactory.configure(new InetSocketAddress(port), cnxnFactory.getMaxClientCnxnsPerHost());
-            cnxnFactory.startup(zkServer);
+            cnxnFactory = cnxnFactoryOptions.create();
+            cnxnFactory.configure(new InetSocketAddress(port), maxClientCnxns);
+            ServerCnxnFactories.startup(cnxnFactory, zkServer);
 
             return cnxnFactory;
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // the port is commonly taken, and the caller may retry on another one
+            if (cnxnFactory != null) {
+                cnxnFactory.shutdown();
+            }
+            closeQuietly(ftxn);
+            directoriesToCleanup.remove(serverDir);
+            DirectoryCleaner.get().release(serverDir);
+            DirectoryCleaner.get().delete(serverDir);
+            Throwables.propagateIfInstanceOf(e, RuntimeException.class);
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Deletes the directories of the servers started so far in the background, if enabled. The
+     * servers must have been released.
+     */
     @Override
     public void cleanup() {
         for (File dir : directoriesToCleanup) {
-            try {
-                FileUtils.deleteDirectory(dir);
-            } catch (IOException e) {
-                LOGGER.warn("Attempted to cleanup " + dir.getAbsolutePath() + " but cleanup failed.", e);
+            if (directoriesToCleanup.remove(dir)) {
+                DirectoryCleaner.get().delete(dir);
             }
         }
     }
+
+    /**
+     * Sets ZooKeeper's JVM-wide transaction log preallocation, unless a config already set it to the
+     * same size.
+     */
+    private static synchronized void setJvmPreallocSize(long bytes) {
+        if (jvmPreallocSize == bytes) {
+            return;
+        }
+
+        if (jvmPreallocSize != 0) {
+            LOGGER.warn("Changing the transaction log preallocation of every ZooKeeper server in the JVM "
+                    + "from {} to {} bytes", jvmPreallocSize, bytes);
+        }
+        FileTxnLog.setPreallocSize(bytes);
+        jvmPreallocSize = bytes;
+    }
+
+    private File createServerDirectory() {
+        if (directory == null) {
+            return Files.createTempDir();
+        }
+
+        Preconditions.checkState(directory.isDirectory() || directory.mkdirs(),
+                "Could not create directory %s", directory);
+        File serverDir = new File(directory, "zookeeper-" + UUID.randomUUID());
+        Preconditions.checkState(serverDir.mkdir(), "Could not create directory %s", serverDir);
+        return serverDir;
+    }
+
+    private static void closeQuietly(FileTxnSnapLog ftxn) {
+        try {
+            ftxn.close();
+        } catch (IOException e) {
+            LOGGER.debug("Could not close transaction log", e);
+        }
+    }
+
+    /**
+     * Builds a {@link DefaultZooKeeperRuleConfig}.
+     */
+    public static final class Builder {
+        private boolean cleanupOnExit = false;
+        private int tickTime = ZooKeeperServer.DEFAULT_TICK_TIME;
+        private int minSessionTimeout = -1;
+        private int maxSessionTimeout = -1;
+        private int maxClientCnxns = DEFAULT_MAX_CLIENT_CNXNS;
+        private boolean forkable = false;
+
+        @CheckForNull
+        private Long preallocSize;
+
+        private CnxnFactoryOptions cnxnFactoryOptions = CnxnFactoryOptions.systemDefault();
+
+        @CheckForNull
+        private File directory;
+
+        private Builder() {
+            // use DefaultZooKeeperRuleConfig.builder()
+        }
+
+        /**
+         * Deletes the servers' directories on {@link DefaultZooKeeperRuleConfig#cleanup()}.
+         */
+        public Builder cleanupOnExit(boolean cleanup) {
+            this.cleanupOnExit = cleanup;
+            return this;
+        }
+
+        /**
+         * Sets the tick time in milliseconds, which is the unit of the server's session timeouts.
+         */
+        public Builder tickTime(int millis) {
+            Preconditions.checkArgument(millis > 0, "Tick time must be positive");
+            this.tickTime = millis;
+            return this;
+        }
+
+        /**
+         * Sets the lowest session timeout the server grants, which defaults to twice the tick time.
+         */
+        public Builder minSessionTimeout(int millis) {
+            Preconditions.checkArgument(millis > 0, "Session timeout must be positive");
+            this.minSessionTimeout = millis;
+            return this;
+        }
+
+        /**
+         * Sets the highest session timeout the server grants, which defaults to 20 times the tick
+         * time.
+         */
+        public Builder maxSessionTimeout(int millis) {
+            Preconditions.checkArgument(millis > 0, "Session timeout must be positive");
+            this.maxSessionTimeout = millis;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of connections from a single host, or 0 for no limit.
+         */
+        public Builder maxClientCnxns(int max) {
+            Preconditions.checkArgument(max >= 0, "Connection limit must not be negative");
+            this.maxClientCnxns = max;
+            return this;
+        }
+
+        /**
+         * Makes the servers keep their nodes in a copy-on-write tree, which
+         * {@link ZooKeeperRule#withFork(String)} needs. The tree adds a little work to every request,
+         * so only use it for servers with forks.
+         */
+        public Builder forkableNamespaces() {
+            this.forkable = true;
+            return this;
+        }
+
+        /**
+         * Sets how many bytes the transaction log preallocates at a time, which is 64 MB by default
+         * and at least 1 MB.
+         * <p>
+         * WARNING: This is a JVM-wide setting. ZooKeeper keeps it in a static field, so once a server
+         * of this config starts, it applies to the transaction logs of every server in the JVM,
+         * whatever their config, until a config with another size starts a server. Use the same size
+         * for every config of a JVM.
+         */
+        public Builder preallocSize(long bytes) {
+            Preconditions.checkArgument(bytes >= MIN_PREALLOC_SIZE,
+                    "Preallocation must be at least %s bytes", MIN_PREALLOC_SIZE);
+            this.preallocSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the connection factory, such as {@link NIOServerCnxnFactory} or
+         * {@link org.apache.zookeeper.server.NettyServerCnxnFactory}. By default the factory is chosen
+         * by ZooKeeper's zookeeper.serverCnxnFactory system property, and is NIO if it is not set.
+         */
+        public Builder cnxnFactory(Class<? extends ServerCnxnFactory> factoryClass) {
+            this.cnxnFactoryOptions = CnxnFactoryOptions.of(factoryClass);
+            return this;
+        }
+
+        /**
+         * Sets the connection factory along with its threads and buffer sizes, for example
+         * {@code CnxnFactoryOptions.netty().withWorkerThreads(8)}.
+         */
+        public Builder cnxnFactory(CnxnFactoryOptions options) {
+            Preconditions.checkArgument(options != null);
+            this.cnxnFactoryOptions = options;
+            return this;
+        }
+
+        /**
+         * Creates the servers' directories under the given directory rather than in the system's temp
+         * directory, so that they can all be removed in one pass, for example by the build's clean
+         * task, even when the JVM didn't exit normally. The directory is created if it doesn't exist.
+         */
+        public Builder directory(File dir) {
+            Preconditions.checkArgument(dir != null);
+            this.directory = dir;
+            return this;
+        }
+
+        /**
+         * Creates the servers' directories under a temp directory shared by every config of the JVM
+         * that uses this option, which is deleted as a whole when the JVM exits, whether or not the
+         * config cleans up after each server. The directories of servers that are still shutting down
+         * at that point, such as those of a {@link SharedZooKeeperRule}, are deleted once they have
+         * shut down.
+         */
+        public Builder perRunDirectory() {
+            this.directory = RunDirectory.DIRECTORY;
+            return this;
+        }
+
+        public DefaultZooKeeperRuleConfig build() {
+            Preconditions.checkState(minSessionTimeout < 0 || maxSessionTimeout < 0
+                    || minSessionTimeout <= maxSessionTimeout,
+                    "Minimum session timeout %s is above the maximum %s", minSessionTimeout, maxSessionTimeout);
+            return new DefaultZooKeeperRuleConfig(this);
+        }
+    }
+
+    /**
+     * Holds the per-run directory, which is only created once a config asks for it.
+     */
+    private static final class RunDirectory {
+        private static final File DIRECTORY = create();
+
+        private static File create() {
+            File dir = Files.createTempDir();
+            DirectoryCleaner.get().deleteOnExit(dir);
+            LOGGER.debug("Creating ZooKeeper server directories under {}", dir);
+            return dir;
+        }
+    }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Callables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Deletes server directories on a background thread, so that deleting transaction logs and
+ * snapshots doesn't add to the time of every test.
+ * <p>
+ * At most {@value #QUEUE_CAPACITY} directories wait to be deleted. Beyond that, the caller deletes
+ * the directory itself, so that a test suite that creates directories faster than they can be
+ * deleted doesn't fill the disk. Directories still waiting when the JVM exits are deleted before it
+ * does, followed by the directories registered with {@link #deleteOnExit(File)}.
+ * <p>
+ * Servers may still be shutting down at that point, since the shutdown hooks of the JVM run
+ * concurrently. Directories passed to {@link #retain(File)} are therefore left alone until they are
+ * passed to {@link #release(File)} once their server has shut down, and deleted then.
+ *
+ * @author juang
+ */
+final class DirectoryCleaner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryCleaner.class);
+
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long DRAIN_TIMEOUT_SECONDS = 60;
+
+    private static final DirectoryCleaner INSTANCE = new DirectoryCleaner();
+
+    private final ThreadPoolExecutor executor;
+    private final Set<File> directoriesToDeleteOnExit = Sets.newConcurrentHashSet();
+    private final Object exitLock = new Object();
+
+    /**
+     * The directories of servers that are still running, guarded by {@link #exitLock}.
+     */
+    private final Set<File> directoriesInUse = Sets.newHashSet();
+
+    /**
+     * Whether the directories registered with {@link #deleteOnExit(File)} were deleted, guarded by
+     * {@link #exitLock}.
+     */
+    private boolean exited = false;
+
+    private DirectoryCleaner() {
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("zookeeper-directory-cleaner-%d")
+                        .build(),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor rejectingExecutor) {
+                        // the queue is full or the JVM is exiting, so delete on the caller's thread
+                        task.run();
+                    }
+                });
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "zookeeper-directory-cleaner-shutdown"));
+    }
+
+    static DirectoryCleaner get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Deletes the directory in the background.
+     */
+    void delete(final File dir) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteDirectory(dir);
+            }
+        });
+    }
+
+    /**
+     * Deletes the directory when the JVM exits, after the directories waiting to be deleted.
+     */
+    void deleteOnExit(File dir) {
+        directoriesToDeleteOnExit.add(dir);
+    }
+
+    /**
+     * Keeps a directory that a running server writes to from being deleted on exit until
+     * {@link #release(File)} is called for it.
+     */
+    void retain(File dir) {
+        synchronized (exitLock) {
+            directoriesInUse.add(dir);
+        }
+    }
+
+    /**
+     * Releases a directory passed to {@link #retain(File)} once its server has shut down. If the JVM
+     * is already exiting and the directory is in one registered with {@link #deleteOnExit(File)}, it
+     * is deleted right away.
+     */
+    void release(File dir) {
+        synchronized (exitLock) {
+            if (!directoriesInUse.remove(dir) || !exited) {
+                return;
+            }
+
+            File parent = dir.getParentFile();
+            if (directoriesToDeleteOnExit.contains(parent)) {
+                deleteDirectory(dir);
+                // only succeeds once the last server in it is gone
+                parent.delete();
+            }
+        }
+    }
+
+    /**
+     * Waits until the directories passed to {@link #delete(File)} so far are deleted.
+     */
+    void await() {
+        try {
+            executor.submit(Callables.returning(null)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void drain() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.warn("Timed out deleting ZooKeeper server directories");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (exitLock) {
+            exited = true;
+            for (File dir : directoriesToDeleteOnExit) {
+                deleteUnusedDirectory(dir);
+            }
+        }
+    }
+
+    /**
+     * Deletes a directory, except for the directories in it that servers still use.
+     */
+    private void deleteUnusedDirectory(File dir) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            if (directoriesInUse.contains(child)) {
+                LOGGER.debug("Deleting {} once its ZooKeeper server has shut down", child);
+            } else if (child.isDirectory()) {
+                deleteDirectory(child);
+            } else {
+                child.delete();
+            }
+        }
+        // only succeeds if no server uses it anymore
+        dir.delete();
+    }
+
+    static void deleteDirectory(File dir) {
+        try {
+            FileUtils.deleteDirectory(dir);
+        } catch (IOException e) {
+            LOGGER.warn("Attempted to cleanup " + dir.getAbsolutePath() + " but cleanup failed.", e);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.server.quorum.QuorumPeer;
+import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
+import org.apache.zookeeper.server.quorum.QuorumPeer.ServerState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * A {@link ZooKeeperRule} that runs a quorum of ZooKeeper servers inside the JVM, for testing
+ * leader election, follower reads and session migration.
+ * <p>
+ * Clients returned by {@link #getClient()} are given the connect string of the whole ensemble.
+ * Individual members can be stopped and restarted with {@link #stopMember(int)} and
+ * {@link #restartMember(int)}, and {@link #awaitQuorum(long, TimeUnit)} measures how long the
+ * ensemble takes to recover.
+ * <p>
+ * Client ports are bound to port 0. The quorum and election ports have to be known by every member
+ * before any of them starts, so they are picked from the free ports at startup. Another process could
+ * grab one of those ports in between, in which case the rule fails to start.
+ * <p>
+ * The servers use a short tick time of {@value #TICK_TIME} ms so that elections and failure detection
+ * are quick. Like the servers of the other rules, the members don't register any JMX beans, see
+ * {@link NoJMXQuorumPeer}.
+ * <p>
+ * The members' nodes can't be written directly, so {@link #withSnapshot(File)} and
+ * {@link #loadSnapshot(File)} are not supported.
+ *
+ * @author juang
+ */
+public final class EnsembleZooKeeperRule extends ZooKeeperRule {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EnsembleZooKeeperRule.class);
+
+    private static final int TICK_TIME = 200;
+    private static final int INIT_LIMIT = 10;
+    private static final int SYNC_LIMIT = 5;
+    private static final int MAX_SESSION_TIMEOUT = 60000;
+    private static final int FAST_LEADER_ELECTION = 3;
+    private static final long QUORUM_TIMEOUT_SECONDS = 60;
+    private static final long MEMBER_SHUTDOWN_TIMEOUT_SECONDS = 30;
+    private static final long POLL_INTERVAL_MILLIS = 10;
+
+    private final int size;
+    private final List<Member> members = Lists.newArrayList();
+    private final Map<Long, QuorumServer> view = Maps.newHashMap();
+
+    public EnsembleZooKeeperRule(int size) {
+        this(generateRandomNamespace(), size);
+    }
+
+    public EnsembleZooKeeperRule(String namespace, int size) {
+        super(namespace);
+        Preconditions.checkArgument(size > 0, "An ensemble needs at least one member");
+
+        this.size = size;
+    }
+
+    @Override
+    protected void startServer() {
+        LOGGER.debug("Starting ZooKeeper ensemble with {} members", size);
+
+        for (int i = 0; i < size; i++) {
+            long id = i + 1;
+            InetSocketAddress quorumAddress = new InetSocketAddress("127.0.0.1", Ports.findFreePort());
+            InetSocketAddress electionAddress = new InetSocketAddress("127.0.0.1", Ports.findFreePort());
+
+            members.add(new Member(id, Files.createTempDir()));
+            view.put(id, new QuorumServer(id, quorumAddress, electionAddress));
+        }
+
+        for (Member member : members) {
+            member.start();
+        }
+
+        long millis = awaitQuorum(QUORUM_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        LOGGER.debug("ZooKeeper ensemble at {} formed a quorum in {} ms", getConnectString(), millis);
+    }
+
+    @Override
+    protected void closeServer() {
+        for (Member member : members) {
+            if (member.isRunning()) {
+                member.stop();
+            }
+        }
+
+        for (Member member : members) {
+            try {
+                FileUtils.deleteDirectory(member.dataDir);
+            } catch (IOException e) {
+                LOGGER.warn("Attempted to cleanup " + member.dataDir.getAbsolutePath() + " but cleanup failed.", e);
+            }
+        }
+
+        // the rule may be started again, with new members
+        members.clear();
+        view.clear();
+    }
+
+    /**
+     * Returns the connection factory of the current leader.
+     */
+    @Override
+    protected ServerCnxnFactory getCnxnFactory() {
+        int leader = getLeader();
+        Preconditions.checkState(leader >= 0, "The ensemble currently has no leader");
+
+        return members.get(leader).getPeer().getCnxnFactory();
+    }
+
+    @Override
+    protected String getConnectString() {
+        List<String> hosts = Lists.newArrayList();
+        for (int i = 0; i < size; i++) {
+            hosts.add(getMemberConnectString(i));
+        }
+        return Joiner.on(',').join(hosts);
+    }
+
+    /**
+     * Not supported, since writing straight into the data tree of one member would make it diverge
+     * from the others. Create the nodes through a client instead.
+     */
+    @Override
+    public ZooKeeperRule withSnapshot(File snapshotFile) {
+        throw new UnsupportedOperationException("Snapshots can't be loaded into an ensemble");
+    }
+
+    /**
+     * Not supported, see {@link #withSnapshot(File)}.
+     */
+    @Override
+    public void loadSnapshot(File snapshotFile) {
+        throw new UnsupportedOperationException("Snapshots can't be loaded into an ensemble");
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the connect string of a single member, for clients that should stick to that member.
+     *
+     * @throws IllegalStateException if the ensemble is not running
+     */
+    public String getMemberConnectString(int index) {
+        return "127.0.0.1:" + getMember(index).clientPort;
+    }
+
+    /**
+     * Returns the index of the member that is currently leading, or -1 if there is none.
+     *
+     * @throws IllegalStateException if the ensemble is not running
+     */
+    public int getLeader() {
+        checkStarted();
+
+        for (int i = 0; i < size; i++) {
+            Member member = members.get(i);
+            if (member.isRunning() && member.getPeer().getPeerState() == ServerState.LEADING) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Shuts down a member, as if its process had been killed.
+     */
+    public void stopMember(int index) {
+        Member member = getMember(index);
+        Preconditions.checkState(member.isRunning(), "Member %s is not running", index);
+
+        member.stop();
+    }
+
+    /**
+     * Starts a member that was stopped, on the same ports and with the same data as before. This
+     * does not wait for the member to rejoin the quorum, use {@link #awaitQuorum(long, TimeUnit)} for
+     * that.
+     */
+    public void restartMember(int index) {
+        Member member = getMember(index);
+        Preconditions.checkState(!member.isRunning(), "Member %s is already running", index);
+
+        member.start();
+    }
+
+    /**
+     * Waits until a leader is elected and every running member is serving, and returns how long
+     * that took in milliseconds.
+     *
+     * @throws IllegalStateException if the ensemble did not recover in time, for example because a
+     *         majority of its members is stopped
+     */
+    public long awaitQuorum(long timeout, TimeUnit unit) {
+        checkStarted();
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+
+        while (!hasQuorum()) {
+            if (stopwatch.elapsed(unit) >= timeout) {
+                throw new IllegalStateException("The ensemble did not form a quorum within " + timeout + " " + unit);
+            }
+            Uninterruptibles.sleepUninterruptibly(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        return stopwatch.elapsed(TimeUnit.MILLISECONDS);
+    }
+
+    private Member getMember(int index) {
+        checkStarted();
+        Preconditions.checkElementIndex(index, size, "member");
+
+        return members.get(index);
+    }
+
+    private void checkStarted() {
+        Preconditions.checkState(!members.isEmpty(), "The ensemble is not running, call before() first");
+    }
+
+    private boolean hasQuorum() {
+        int leaders = 0;
+        for (Member member : members) {
+            if (!member.isRunning()) {
+                continue;
+            }
+
+            QuorumPeer peer = member.getPeer();
+            ServerState state = peer.getPeerState();
+            if (state == ServerState.LEADING) {
+                leaders++;
+            } else if (state != ServerState.FOLLOWING) {
+                return false;
+            }
+
+            ZooKeeperServer activeServer = peer.getActiveServer();
+            if (activeServer == null || !activeServer.isRunning()) {
+                return false;
+            }
+        }
+        return leaders == 1;
+    }
+
+    private final class Member {
+        private final long id;
+        private final File dataDir;
+
+        private int clientPort = 0;
+
+        @CheckForNull
+        private QuorumPeer peer;
+
+        private Member(long id, File dataDir) {
+            this.id = id;
+            this.dataDir = dataDir;
+        }
+
+        private boolean isRunning() {
+            return peer != null;
+        }
+
+        private QuorumPeer getPeer() {
+            Preconditions.checkState(peer != null);
+            return peer;
+        }
+
+        private void start() {
+            try {
+                ServerCnxnFactory cnxnFactory = ServerCnxnFactory.createFactory();
+                cnxnFactory.configure(new InetSocketAddress(clientPort), cnxnFactory.getMaxClientCnxnsPerHost());
+
+                // the first start picks a port, restarts reuse it so that the connect string stays valid
+                clientPort = cnxnFactory.getLocalPort();
+
+                QuorumPeer newPeer = new NoJMXQuorumPeer(view, dataDir, dataDir, FAST_LEADER_ELECTION, id,
+                        TICK_TIME, INIT_LIMIT, SYNC_LIMIT, cnxnFactory);
+                newPeer.setMaxSessionTimeout(MAX_SESSION_TIMEOUT);
+                newPeer.start();
+
+                LOGGER.debug("Started ensemble member {} with client port {}", id, clientPort);
+                peer = newPeer;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void stop() {
+            QuorumPeer stoppedPeer = getPeer();
+            peer = null;
+
+            LOGGER.debug("Stopping ensemble member {} with client port {}", id, clientPort);
+            stoppedPeer.shutdown();
+            try {
+                stoppedPeer.join(TimeUnit.SECONDS.toMillis(MEMBER_SHUTDOWN_TIMEOUT_SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
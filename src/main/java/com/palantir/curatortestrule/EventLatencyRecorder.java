@@ -0,0 +1,246 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.CuratorEventType;
+import org.apache.curator.framework.api.CuratorListener;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.zookeeper.Watcher.Event.EventType;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AtomicLongMap;
+
+/**
+ * Measures how long it takes for writes to reach clients as watch events, for tests that assert on
+ * how quickly caches and recipes see changes.
+ * <p>
+ * Register the recorder with {@link ZooKeeperRule#withEventLatencyRecorder(EventLatencyRecorder)},
+ * which makes it listen to the clients the rule hands out from then on, and call
+ * {@link #writeStarted(String)} right before each write. Watches set through Curator's
+ * {@code watched()} are delivered to the recorder automatically. Events that reach a test through
+ * other listeners, such as a {@code PathChildrenCacheListener}, can be passed to
+ * {@link #eventReceived(String)}.
+ * <p>
+ * Writes and events are matched by path, which is relative to the rule's namespace. A child watch
+ * fires on the parent, so a write that is expected to trigger one should be recorded with the
+ * parent's path. ZooKeeper's watches fire once, so a single event can answer several writes to the
+ * same path, and every pending write of the path is matched to it.
+ * <p>
+ * Events that arrive later than the threshold given to the constructor are counted as late, and
+ * writes that are still unmatched after the threshold as missed.
+ *
+ * @author juang
+ */
+public final class EventLatencyRecorder {
+
+    private final long lateThresholdNanos;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final ConcurrentMap<String, LatencyHistogram> pathLatencies = Maps.newConcurrentMap();
+    private final AtomicLongMap<ConnectionState> connectionStateChanges = AtomicLongMap.create();
+    private final Listener listener = new Listener();
+
+    /**
+     * Start times of the writes whose event hasn't arrived yet, by path. Guarded by itself.
+     */
+    private final Map<String, Deque<Long>> pendingWrites = Maps.newHashMap();
+
+    private long lateEvents = 0;
+    private long unmatchedEvents = 0;
+
+    public EventLatencyRecorder(long lateThreshold, TimeUnit unit) {
+        Preconditions.checkArgument(lateThreshold > 0, "Threshold must be positive");
+
+        this.lateThresholdNanos = unit.toNanos(lateThreshold);
+    }
+
+    /**
+     * Records that a write that should trigger an event for the given path starts now.
+     */
+    public void writeStarted(String path) {
+        long nowNanos = System.nanoTime();
+        synchronized (pendingWrites) {
+            Deque<Long> writes = pendingWrites.get(path);
+            if (writes == null) {
+                writes = new ArrayDeque<>();
+                pendingWrites.put(path, writes);
+            }
+            writes.add(nowNanos);
+        }
+    }
+
+    /**
+     * Records that a client saw an event for the given path now.
+     */
+    public void eventReceived(String path) {
+        long nowNanos = System.nanoTime();
+
+        // the lock is held until the latencies are recorded, so that awaitEvents() never returns
+        // before they show up
+        synchronized (pendingWrites) {
+            Deque<Long> writes = pendingWrites.remove(path);
+            if (writes == null) {
+                unmatchedEvents++;
+                return;
+            }
+
+            LatencyHistogram histogram = pathLatencies.get(path);
+            if (histogram == null) {
+                pathLatencies.putIfAbsent(path, new LatencyHistogram());
+                histogram = pathLatencies.get(path);
+            }
+
+            for (long writeNanos : writes) {
+                long latency = nowNanos - writeNanos;
+                latencies.record(latency);
+                histogram.record(latency);
+
+                if (latency > lateThresholdNanos) {
+                    lateEvents++;
+                }
+            }
+
+            pendingWrites.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until every write recorded so far is matched by an event, and returns false if that
+     * didn't happen within the timeout.
+     */
+    public boolean awaitEvents(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (pendingWrites) {
+            while (!pendingWrites.isEmpty()) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                pendingWrites.wait(remainingMillis);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of writes that were matched by an event.
+     */
+    public long getEventCount() {
+        return latencies.getCount();
+    }
+
+    public long getEventCount(String path) {
+        return getPathLatencies(path).getCount();
+    }
+
+    /**
+     * Returns the given percentile of the time between writes and their events, accurate to about
+     * 6%.
+     */
+    public long getPercentile(double percentile, TimeUnit unit) {
+        return latencies.getPercentile(percentile, unit);
+    }
+
+    public long getPercentile(String path, double percentile, TimeUnit unit) {
+        return getPathLatencies(path).getPercentile(percentile, unit);
+    }
+
+    public long getMax(TimeUnit unit) {
+        return latencies.getMax(unit);
+    }
+
+    /**
+     * Returns the number of writes whose event arrived later than the threshold.
+     */
+    public long getLateEventCount() {
+        synchronized (pendingWrites) {
+            return lateEvents;
+        }
+    }
+
+    /**
+     * Returns the number of writes whose event hasn't arrived, although the threshold has passed.
+     */
+    public long getMissedEventCount() {
+        long nowNanos = System.nanoTime();
+        long missed = 0;
+        synchronized (pendingWrites) {
+            for (Deque<Long> writes : pendingWrites.values()) {
+                for (long writeNanos : writes) {
+                    if (nowNanos - writeNanos > lateThresholdNanos) {
+                        missed++;
+                    }
+                }
+            }
+        }
+        return missed;
+    }
+
+    /**
+     * Returns the number of events that arrived for a path with no pending write.
+     */
+    public long getUnmatchedEventCount() {
+        synchronized (pendingWrites) {
+            return unmatchedEvents;
+        }
+    }
+
+    /**
+     * Returns how often the clients moved into each connection state, such as
+     * {@link ConnectionState#SUSPENDED}, during which they miss events.
+     */
+    public Map<ConnectionState, Long> getConnectionStateChanges() {
+        return ImmutableMap.copyOf(connectionStateChanges.asMap());
+    }
+
+    /**
+     * Makes the recorder listen to the watch events and connection state of the client.
+     */
+    void attach(CuratorFramework client) {
+        client.getCuratorListenable().addListener(listener);
+        client.getConnectionStateListenable().addListener(listener);
+    }
+
+    private LatencyHistogram getPathLatencies(String path) {
+        LatencyHistogram histogram = pathLatencies.get(path);
+        return histogram != null ? histogram : new LatencyHistogram();
+    }
+
+    private final class Listener implements CuratorListener, ConnectionStateListener {
+        @Override
+        public void eventReceived(CuratorFramework client, CuratorEvent event) {
+            if (event.getType() == CuratorEventType.WATCHED && event.getWatchedEvent().getType() != EventType.None) {
+                EventLatencyRecorder.this.eventReceived(event.getPath());
+            }
+        }
+
+        @Override
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            connectionStateChanges.incrementAndGet(newState);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.util.SerializeUtils;
+
+/**
+ * A {@link FileTxnSnapLog} that never touches the disk. Transactions are acknowledged without
+ * being written anywhere, and snapshots are kept on the heap.
+ * <p>
+ * {@link FileTxnSnapLog} is a class rather than an interface, so a directory still has to be
+ * provided to the super constructor. It is only created, never written to.
+ *
+ * @author juang
+ */
+final class InMemoryTxnSnapLog extends FileTxnSnapLog {
+
+    private volatile long lastLoggedZxid;
+
+    @CheckForNull
+    private volatile byte[] snapshot;
+
+    InMemoryTxnSnapLog(File placeholderDir) throws IOException {
+        super(placeholderDir, placeholderDir);
+    }
+
+    @Override
+    public long restore(DataTree dt, Map<Long, Integer> sessions, PlayBackListener listener) throws IOException {
+        byte[] currentSnapshot = snapshot;
+        if (currentSnapshot != null) {
+            BinaryInputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(currentSnapshot));
+            SerializeUtils.deserializeSnapshot(dt, ia, sessions);
+        }
+
+        return dt.lastProcessedZxid;
+    }
+
+    @Override
+    public long getLastLoggedZxid() {
+        return lastLoggedZxid;
+    }
+
+    @Override
+    public void save(DataTree dataTree, ConcurrentHashMap<Long, Integer> sessionsWithTimeouts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryOutputArchive oa = BinaryOutputArchive.getArchive(out);
+        SerializeUtils.serializeSnapshot(dataTree, oa, sessionsWithTimeouts);
+        snapshot = out.toByteArray();
+    }
+
+    @Override
+    public boolean truncateLog(long zxid) throws IOException {
+        return true;
+    }
+
+    @Override
+    public File findMostRecentSnapshot() throws IOException {
+        return null;
+    }
+
+    @Override
+    public List<File> findNRecentSnapshots(int n) throws IOException {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public File[] getSnapshotLogs(long zxid) {
+        return new File[0];
+    }
+
+    @Override
+    public boolean append(Request si) throws IOException {
+        if (si.hdr == null) {
+            return false;
+        }
+
+        lastLoggedZxid = si.hdr.getZxid();
+        return true;
+    }
+
+    @Override
+    public void commit() throws IOException {
+        // nothing to flush
+    }
+
+    @Override
+    public void rollLog() throws IOException {
+        // nothing to roll
+    }
+
+    @Override
+    public void close() throws IOException {
+        // nothing to close
+    }
+}
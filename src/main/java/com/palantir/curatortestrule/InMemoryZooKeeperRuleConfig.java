@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+/**
+ * Implementation of {@link ZooKeeperRuleConfig} which uses a {@link NoJMXZooKeeperServer} whose
+ * transaction log and snapshots are kept in memory.
+ * <p>
+ * Unlike {@link DefaultZooKeeperRuleConfig}, writes are never fsynced to disk, which makes this
+ * config considerably faster for write-heavy tests. The trade-off is that the server state cannot
+ * survive a restart, which is never needed by the rules in this package.
+ *
+ * @author juang
+ */
+public final class InMemoryZooKeeperRuleConfig implements ZooKeeperRuleConfig {
+
+    /**
+     * Shared by every in-memory server in the JVM. It is created but never written to.
+     */
+    private static final File PLACEHOLDER_DIR =
+            new File(System.getProperty("java.io.tmpdir"), "curator-test-rule-in-memory");
+
+    private final CnxnFactoryOptions cnxnFactoryOptions;
+    private final boolean forkable;
+
+    public InMemoryZooKeeperRuleConfig() {
+        this(CnxnFactoryOptions.systemDefault());
+    }
+
+    /**
+     * Creates a config whose servers use the given connection factory, for example
+     * {@code CnxnFactoryOptions.netty()} for tests with many clients.
+     */
+    public InMemoryZooKeeperRuleConfig(CnxnFactoryOptions cnxnFactoryOptions) {
+        this(cnxnFactoryOptions, false);
+    }
+
+    private InMemoryZooKeeperRuleConfig(CnxnFactoryOptions cnxnFactoryOptions, boolean forkable) {
+        Preconditions.checkArgument(cnxnFactoryOptions != null);
+
+        this.cnxnFactoryOptions = cnxnFactoryOptions;
+        this.forkable = forkable;
+    }
+
+    /**
+     * Returns a config like this one whose servers keep their nodes in a copy-on-write tree, which
+     * {@link ZooKeeperRule#withFork(String)} needs. The tree adds a little work to every request, so
+     * only use it for servers with forks.
+     */
+    public InMemoryZooKeeperRuleConfig withForkableNamespaces() {
+        return new InMemoryZooKeeperRuleConfig(cnxnFactoryOptions, true);
+    }
+
+    @Override
+    public ServerCnxnFactory getServer(int port) {
+        ZooKeeperServer zkServer = new NoJMXZooKeeperServer(forkable);
+
+        try {
+            zkServer.setTxnLogFactory(new InMemoryTxnSnapLog(getPlaceholderDir()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        ServerCnxnFactory cnxnFactory = null;
+        try {
+            cnxnFactory = cnxnFactoryOptions.create();
+            cnxnFactory.configure(new InetSocketAddress(port), cnxnFactory.getMaxClientCnxnsPerHost());
+            ServerCnxnFactories.startup(cnxnFactory, zkServer);
+
+            return cnxnFactory;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // closes the socket and selector, so that the caller can retry on another port
+            if (cnxnFactory != null) {
+                cnxnFactory.shutdown();
+            }
+            Throwables.propagateIfInstanceOf(e, RuntimeException.class);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        // nothing was written to disk
+    }
+
+    private static synchronized File getPlaceholderDir() {
+        if (!PLACEHOLDER_DIR.exists()) {
+            PLACEHOLDER_DIR.mkdirs();
+            PLACEHOLDER_DIR.deleteOnExit();
+            // FileTxnSnapLog creates this subdirectory, register it so that it is deleted first
+            new File(PLACEHOLDER_DIR, FileTxnSnapLog.version + FileTxnSnapLog.VERSION).deleteOnExit();
+        }
+        return PLACEHOLDER_DIR;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A histogram of durations in nanoseconds with a fixed memory footprint. Durations are counted in
+ * buckets whose width is a sixteenth of their power of two, so percentiles are accurate to about 6%.
+ *
+ * @author juang
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+
+    private long count = 0;
+    private long totalNanos = 0;
+    private long maxNanos = 0;
+
+    synchronized void record(long nanos) {
+        long value = Math.max(nanos, 0);
+
+        counts[bucket(value)]++;
+        count++;
+        totalNanos += value;
+        maxNanos = Math.max(maxNanos, value);
+    }
+
+    /**
+     * Adds the durations recorded by another histogram to this one.
+     */
+    void add(LatencyHistogram other) {
+        long[] otherCounts;
+        long otherCount;
+        long otherTotalNanos;
+        long otherMaxNanos;
+        synchronized (other) {
+            otherCounts = other.counts.clone();
+            otherCount = other.count;
+            otherTotalNanos = other.totalNanos;
+            otherMaxNanos = other.maxNanos;
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += otherCounts[i];
+            }
+            count += otherCount;
+            totalNanos += otherTotalNanos;
+            maxNanos = Math.max(maxNanos, otherMaxNanos);
+        }
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized long getTotal(TimeUnit unit) {
+        return unit.convert(totalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    synchronized long getMax(TimeUnit unit) {
+        return unit.convert(maxNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the smallest recorded duration that is at least as long as the given percentage of all
+     * recorded durations, rounded up to the end of its bucket, or 0 if nothing was recorded.
+     */
+    synchronized long getPercentile(double percentile, TimeUnit unit) {
+        Preconditions.checkArgument(percentile >= 0 && percentile <= 100);
+
+        long rank = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return unit.convert(Math.min(upperBound(i), maxNanos), TimeUnit.NANOSECONDS);
+            }
+        }
+        return 0;
+    }
+
+    private static int bucket(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket - shift * SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+/**
+ * The operations {@link ZooKeeperLoadDriver} sends to the server. Each operation picks one of the
+ * driver's nodes at random, and an operation that finds its node missing or already existing still
+ * counts as done, since the server handled it all the same.
+ *
+ * @author juang
+ */
+public enum LoadOperation {
+    /**
+     * Creates the node.
+     */
+    CREATE,
+
+    /**
+     * Reads the node's data.
+     */
+    GET_DATA,
+
+    /**
+     * Writes the node's data.
+     */
+    SET_DATA,
+
+    /**
+     * Deletes the node.
+     */
+    DELETE,
+
+    /**
+     * Checks whether the node exists and leaves a watch on it, which fires on its next change.
+     */
+    WATCH
+}
@@ -32,6 +32,11 @@ import com.google.common.base.Preconditions;
  * If port 0 is specified, then the port provided by the OS will be used. Therefore, multiple tests
  * can bind to port 0 and a different server will be used for each.
  * <p>
+ * A {@link PortStrategy} can be given instead of a port, in which case the rule moves on to the next
+ * port of the strategy whenever a port is taken. This lets tests that run in parallel, in one JVM or
+ * in several forked JVMs, use predictable ports without colliding, see {@link PortStrategies}. The
+ * zero-argument constructor uses {@link PortStrategies#getDefault()}.
+ * <p>
  * WARNING: behavior is unspecified if two {@link LocalZooKeeperRule}s use the same non-0 port in parallel.
  *
  * @author juang
@@ -40,37 +45,43 @@ public final class LocalZooKeeperRule extends ZooKeeperRule {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(LocalZooKeeperRule.class);
 
+    private final PortStrategy portStrategy;
+
     @CheckForNull
     private ServerCnxnFactory cnxnFactory;
 
     public LocalZooKeeperRule() {
-        super();
+        this(generateRandomNamespace(), PortStrategies.getDefault(), new DefaultZooKeeperRuleConfig());
     }
 
     public LocalZooKeeperRule(String namespace, int port, ZooKeeperRuleConfig serverWrapper) {
         super(namespace, port, serverWrapper);
+        this.portStrategy = PortStrategies.fixed(port);
     }
 
-    @Override
-    protected void before() {
-        super.before();
+    public LocalZooKeeperRule(String namespace, PortStrategy portStrategy, ZooKeeperRuleConfig serverWrapper) {
+        super(namespace, 0, serverWrapper);
+        Preconditions.checkArgument(portStrategy != null);
+
+        this.portStrategy = portStrategy;
+    }
 
-        LOGGER.debug("Starting new ZooKeeper server at port {}", port);
+    @Override
+    protected void startServer() {
+        LOGGER.debug("Starting new ZooKeeper server at port {}", portStrategy);
 
-        this.cnxnFactory = this.ruleConfig.getServer(port);
+        long startNanos = System.nanoTime();
+        this.cnxnFactory = Ports.getServer(this.ruleConfig, portStrategy);
+        recordPhase(ZooKeeperRulePhase.GET_SERVER, startNanos);
 
-        if (port == 0) {
-            LOGGER.debug("ZooKeeper server bound to 0 actually started at port {}", this.cnxnFactory.getLocalPort());
-        } else {
-            LOGGER.debug("ZooKeeper server started at port {}", this.cnxnFactory.getLocalPort());
-        }
+        LOGGER.debug("ZooKeeper server started at port {}", this.cnxnFactory.getLocalPort());
     }
 
     @Override
     protected void closeServer() {
         if (this.cnxnFactory != null) {
             LOGGER.debug("Closing ZooKeeper server at port {}", this.cnxnFactory.getLocalPort());
-            this.cnxnFactory.shutdown();
+            ZooKeeperServers.releaseServer(this.ruleConfig, this.cnxnFactory);
         } else {
             LOGGER.debug("Cannot close ZooKeeper server. It is likely that it had trouble starting.");
         }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Deque;
+import java.util.List;
+
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Id;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataTree;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Reads and writes snapshots of the subtree of a single namespace.
+ * <p>
+ * Paths are stored relative to the namespace, so a snapshot captured from one namespace can be loaded
+ * into any other. Ephemeral nodes belong to sessions that won't exist when the snapshot is loaded, so
+ * they are not captured. Nodes are written parent first, which lets them be created while the file
+ * is streamed in.
+ *
+ * @author juang
+ */
+final class NamespaceSnapshots {
+
+    private static final int MAGIC = 0x5a4b534e;
+    private static final int VERSION = 1;
+
+    private NamespaceSnapshots() {
+        // utility class
+    }
+
+    /**
+     * Writes every persistent node under {@code root} to {@code file}, and returns the number of
+     * nodes written.
+     */
+    static int write(DataTree dataTree, String root, File file) throws IOException {
+        int count = 0;
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            Deque<String> pending = Lists.newLinkedList();
+            pending.push(root);
+
+            while (!pending.isEmpty()) {
+                String path = pending.pop();
+
+                Stat stat = new Stat();
+                byte[] data;
+                List<ACL> acls;
+                List<String> children;
+                try {
+                    data = dataTree.getData(path, stat, null);
+                    acls = dataTree.getACL(path, stat);
+                    children = dataTree.getChildren(path, null, null);
+                } catch (KeeperException.NoNodeException e) {
+                    // deleted while the snapshot was taken
+                    continue;
+                }
+
+                if (stat.getEphemeralOwner() != 0) {
+                    continue;
+                }
+
+                if (!path.equals(root)) {
+                    out.writeBoolean(true);
+                    writeNode(out, path.substring(root.length()), data, acls);
+                    count++;
+                }
+
+                for (String child : children) {
+                    pending.push(ZKPaths.makePath(path, child));
+                }
+            }
+
+            out.writeBoolean(false);
+        }
+
+        return count;
+    }
+
+    /**
+     * Creates the nodes stored in {@code file} under {@code root}, creating {@code root} itself if
+     * needed. Returns the number of nodes created.
+     */
+    static int read(File file, DataTree dataTree, String root, long zxid) throws IOException {
+        int count = 0;
+        long time = System.currentTimeMillis();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a ZooKeeperRule snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file);
+            }
+
+            if (dataTree.getNode(root) == null) {
+                createNode(dataTree, root, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, zxid, time);
+            }
+
+            while (in.readBoolean()) {
+                String path = in.readUTF();
+
+                int dataLength = in.readInt();
+                byte[] data = null;
+                if (dataLength >= 0) {
+                    data = new byte[dataLength];
+                    in.readFully(data);
+                }
+
+                int aclCount = in.readInt();
+                List<ACL> acls = Lists.newArrayListWithCapacity(aclCount);
+                for (int i = 0; i < aclCount; i++) {
+                    int perms = in.readInt();
+                    String scheme = in.readUTF();
+                    String id = in.readUTF();
+                    acls.add(new ACL(perms, new Id(scheme, id)));
+                }
+
+                createNode(dataTree, root + path, data, acls, zxid, time);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static void writeNode(DataOutputStream out, String path, byte[] data, List<ACL> acls) throws IOException {
+        out.writeUTF(path);
+
+        if (data == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        out.writeInt(acls.size());
+        for (ACL acl : acls) {
+            out.writeInt(acl.getPerms());
+            out.writeUTF(acl.getId().getScheme());
+            out.writeUTF(acl.getId().getId());
+        }
+    }
+
+    private static void createNode(DataTree dataTree, String path, byte[] data, List<ACL> acls, long zxid, long time)
+            throws IOException {
+        try {
+            dataTree.createNode(path, data, acls, 0, -1, zxid, time);
+        } catch (KeeperException e) {
+            throw new IOException("Could not create " + path + " from snapshot", e);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+
+import org.apache.zookeeper.jmx.MBeanRegistry;
+import org.apache.zookeeper.jmx.ZKMBeanInfo;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.quorum.QuorumPeer;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * A subclass of {@link QuorumPeer} that skips JMX related operations.
+ * <p>
+ * Unlike {@link NoJMXZooKeeperServer}, a quorum peer registers its beans itself, as do the leader
+ * and follower servers it creates, and none of them can be subclassed from outside ZooKeeper's
+ * packages. Instead, ZooKeeper's {@link MBeanRegistry} is replaced by one that ignores the calls made
+ * from the threads of these peers, which is where all of that registration happens. Calls from
+ * anywhere else, including other ZooKeeper servers in the JVM, are passed on to the original
+ * registry.
+ *
+ * @author juang
+ */
+final class NoJMXQuorumPeer extends QuorumPeer {
+
+    static {
+        PeerFilteringMBeanRegistry.install();
+    }
+
+    NoJMXQuorumPeer(Map<Long, QuorumServer> quorumPeers, File dataDir, File dataLogDir, int electionType,
+            long myid, int tickTime, int initLimit, int syncLimit, ServerCnxnFactory cnxnFactory)
+            throws IOException {
+        super(quorumPeers, dataDir, dataLogDir, electionType, myid, tickTime, initLimit, syncLimit, cnxnFactory);
+    }
+
+    private static boolean isPeerThread() {
+        return Thread.currentThread() instanceof NoJMXQuorumPeer;
+    }
+
+    private static final class PeerFilteringMBeanRegistry extends MBeanRegistry {
+
+        private final MBeanRegistry delegate;
+
+        /**
+         * The beans whose registration was skipped, so that unregistering them from another thread,
+         * for example when a peer is shut down, is skipped as well.
+         */
+        private final Set<ZKMBeanInfo> skippedBeans =
+                Collections.newSetFromMap(new MapMaker().weakKeys().<ZKMBeanInfo, Boolean>makeMap());
+
+        private PeerFilteringMBeanRegistry(MBeanRegistry delegate) {
+            this.delegate = delegate;
+        }
+
+        /**
+         * {@link MBeanRegistry} only exposes its instance through this private field.
+         */
+        private static void install() {
+            try {
+                Field instanceField = MBeanRegistry.class.getDeclaredField("instance");
+                instanceField.setAccessible(true);
+                synchronized (MBeanRegistry.class) {
+                    MBeanRegistry current = (MBeanRegistry) instanceField.get(null);
+                    if (!(current instanceof PeerFilteringMBeanRegistry)) {
+                        instanceField.set(null, new PeerFilteringMBeanRegistry(current));
+                    }
+                }
+            } catch (NoSuchFieldException | IllegalAccessException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        @Override
+        public MBeanServer getPlatformMBeanServer() {
+            return delegate.getPlatformMBeanServer();
+        }
+
+        @Override
+        public void register(ZKMBeanInfo bean, ZKMBeanInfo parent) throws JMException {
+            if (isPeerThread()) {
+                skippedBeans.add(bean);
+                return;
+            }
+            delegate.register(bean, parent);
+        }
+
+        @Override
+        public void unregister(ZKMBeanInfo bean) {
+            if (isPeerThread() || (bean != null && skippedBeans.remove(bean))) {
+                return;
+            }
+            delegate.unregister(bean);
+        }
+
+        /**
+         * Skipped for the peers, which call this when they stop, and would otherwise unregister the
+         * beans of every other server in the JVM.
+         */
+        @Override
+        public void unregisterAll() {
+            if (isPeerThread()) {
+                return;
+            }
+            delegate.unregisterAll();
+        }
+
+        @Override
+        public String makeFullPath(String prefix, String... name) {
+            return delegate.makeFullPath(prefix, name);
+        }
+    }
+}
@@ -16,15 +16,72 @@
 
 package com.palantir.curatortestrule;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.ServerCnxn;
 import org.apache.zookeeper.server.ZooKeeperServer;
 
+import com.google.common.base.Preconditions;
+
 /**
  * A subclass of {@link ZooKeeperServer} that skips JMX related operations.
+ * <p>
+ * It counts the requests it receives per namespace and operation, see {@link RequestCounters}. If
+ * asked to, it keeps its nodes in a {@link CopyOnWriteDataTree}, whose namespaces can be forked.
+ * <p>
+ * It also hosts the faults injected by {@link ZooKeeperRule}: requests can be delayed by a fixed
+ * latency or held until a point in time, and new connections can be refused until a point in time.
+ * Delayed requests are handed to the request pipeline by a separate thread, in the order in which
+ * they arrived.
  *
  * @author juang
  */
 final class NoJMXZooKeeperServer extends ZooKeeperServer {
 
+    private final boolean forkable;
+    private final RequestCounters requestCounters = new RequestCounters();
+    private final Object delayLock = new Object();
+
+    /**
+     * Requests waiting for their deadline, in arrival order. Deadlines never decrease along the
+     * queue, so that delaying requests never reorders them.
+     */
+    private final Queue<DelayedRequest> delayedRequests = new ArrayDeque<>();
+
+    private long requestLatencyNanos = 0;
+    private long stallDeadlineNanos = Long.MIN_VALUE;
+    private long lastDeadlineNanos = Long.MIN_VALUE;
+    private boolean submittingDelayedRequest = false;
+    private boolean shutDown = false;
+
+    @CheckForNull
+    private Thread delayThread;
+
+    @CheckForNull
+    private Runnable shutdownListener;
+
+    private volatile long refuseConnectionsDeadlineNanos = Long.MIN_VALUE;
+    private volatile boolean refusingConnections = false;
+
+    NoJMXZooKeeperServer() {
+        this(false);
+    }
+
+    /**
+     * Creates a server whose namespaces can be forked if {@code forkable} is true. Otherwise it uses
+     * ZooKeeper's own data tree, which is faster for every request.
+     */
+    NoJMXZooKeeperServer(boolean forkable) {
+        this.forkable = forkable;
+    }
+
     @Override
     protected void registerJMX() {
         // don't do jmx-related things in testing classes
@@ -34,4 +91,190 @@ final class NoJMXZooKeeperServer extends ZooKeeperServer {
     protected void unregisterJMX() {
         // don't do jmx-related things in testing classes
     }
+
+    /**
+     * Uses a {@link CopyOnWriteDataTree} if the server is forkable, so that rules can fork namespaces.
+     */
+    @Override
+    public void startdata() throws IOException, InterruptedException {
+        if (forkable && getZKDatabase() == null) {
+            setZKDatabase(new CopyOnWriteDataTree.Database(getTxnLogFactory()));
+        }
+        super.startdata();
+    }
+
+    @Override
+    public void submitRequest(Request si) {
+        requestCounters.record(si);
+
+        synchronized (delayLock) {
+            long now = System.nanoTime();
+            long deadline = Math.max(now + requestLatencyNanos, Math.max(stallDeadlineNanos, lastDeadlineNanos));
+            boolean delay = deadline - now > 0 || !delayedRequests.isEmpty() || submittingDelayedRequest;
+            if (delay && !shutDown) {
+                lastDeadlineNanos = deadline;
+                delayedRequests.add(new DelayedRequest(si, deadline));
+                startDelayThread();
+                delayLock.notifyAll();
+                return;
+            }
+        }
+
+        super.submitRequest(si);
+    }
+
+    @Override
+    public void processConnectRequest(ServerCnxn cnxn, ByteBuffer incomingBuffer) throws IOException {
+        if (refusingConnections && refuseConnectionsDeadlineNanos - System.nanoTime() > 0) {
+            throw new IOException("Refusing connections to simulate a network partition");
+        }
+        super.processConnectRequest(cnxn, incomingBuffer);
+    }
+
+    @Override
+    public void shutdown() {
+        Runnable listener;
+        synchronized (delayLock) {
+            shutDown = true;
+            if (delayThread != null) {
+                delayThread.interrupt();
+                delayThread = null;
+            }
+            delayedRequests.clear();
+
+            listener = shutdownListener;
+            shutdownListener = null;
+        }
+        super.shutdown();
+
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Runs the given listener once the server has shut down, for example to delete its directories.
+     */
+    void setShutdownListener(Runnable listener) {
+        synchronized (delayLock) {
+            Preconditions.checkState(!shutDown, "The server has already been shut down");
+            this.shutdownListener = listener;
+        }
+    }
+
+    RequestCounters getRequestCounters() {
+        return requestCounters;
+    }
+
+    /**
+     * Delays every request received from now on by the given latency, or stops delaying them if it
+     * is 0.
+     */
+    void setRequestLatency(long latency, TimeUnit unit) {
+        synchronized (delayLock) {
+            this.requestLatencyNanos = unit.toNanos(latency);
+        }
+    }
+
+    /**
+     * Holds every request received from now on until the given duration has passed.
+     */
+    void stallRequests(long duration, TimeUnit unit) {
+        synchronized (delayLock) {
+            this.stallDeadlineNanos = System.nanoTime() + unit.toNanos(duration);
+        }
+    }
+
+    /**
+     * Refuses new connections until the given duration has passed.
+     */
+    void refuseConnections(long duration, TimeUnit unit) {
+        this.refuseConnectionsDeadlineNanos = System.nanoTime() + unit.toNanos(duration);
+        this.refusingConnections = true;
+    }
+
+    /**
+     * Stops all faults, and hands the requests that are still delayed to the pipeline right away.
+     */
+    void clearFaults() {
+        this.refusingConnections = false;
+
+        synchronized (delayLock) {
+            long now = System.nanoTime();
+            requestLatencyNanos = 0;
+            stallDeadlineNanos = Long.MIN_VALUE;
+            lastDeadlineNanos = Long.MIN_VALUE;
+            for (DelayedRequest delayedRequest : delayedRequests) {
+                delayedRequest.deadlineNanos = now;
+            }
+            delayLock.notifyAll();
+        }
+    }
+
+    private void startDelayThread() {
+        if (delayThread != null) {
+            return;
+        }
+
+        delayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    submitDelayedRequests();
+                } catch (InterruptedException e) {
+                    // the server is shutting down
+                }
+            }
+        }, "zookeeper-request-delay");
+        delayThread.setDaemon(true);
+        delayThread.start();
+    }
+
+    private void submitDelayedRequests() throws InterruptedException {
+        while (true) {
+            Request request;
+            synchronized (delayLock) {
+                while (true) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+
+                    DelayedRequest next = delayedRequests.peek();
+                    if (next == null) {
+                        delayLock.wait();
+                        continue;
+                    }
+
+                    long remainingNanos = next.deadlineNanos - System.nanoTime();
+                    if (remainingNanos > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(delayLock, remainingNanos);
+                        continue;
+                    }
+
+                    delayedRequests.remove();
+                    request = next.request;
+                    submittingDelayedRequest = true;
+                    break;
+                }
+            }
+
+            try {
+                super.submitRequest(request);
+            } finally {
+                synchronized (delayLock) {
+                    submittingDelayedRequest = false;
+                }
+            }
+        }
+    }
+
+    private static final class DelayedRequest {
+        private final Request request;
+        private long deadlineNanos;
+
+        private DelayedRequest(Request request, long deadlineNanos) {
+            this.request = request;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
 }
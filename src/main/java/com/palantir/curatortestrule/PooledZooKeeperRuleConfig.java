@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A {@link ZooKeeperRuleConfig} that keeps a number of servers bound to port 0 started in the
+ * background, so that rules don't pay the server startup cost.
+ * <p>
+ * Every call to {@link #getServer(int)} with port 0 checks out a pre-started server and immediately
+ * starts a replacement in the background. Servers are never reused: a released server is shut down
+ * in the background, so each rule sees a fresh, empty server exactly like with the delegate config.
+ * Requests for a non-0 port are passed straight through to the delegate.
+ * <p>
+ * Instances are meant to be shared by many rules, for example through a static field. The pooled
+ * servers are shut down and the delegate is cleaned up by {@link #close()}, which is also called
+ * when the JVM exits.
+ *
+ * @author juang
+ */
+public final class PooledZooKeeperRuleConfig implements ReleasingZooKeeperRuleConfig, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledZooKeeperRuleConfig.class);
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    private final ZooKeeperRuleConfig delegate;
+    private final ListeningExecutorService executor;
+    private final Thread shutdownHook;
+    private final BlockingQueue<ListenableFuture<ServerCnxnFactory>> readyServers = new LinkedBlockingQueue<>();
+    private final Set<ServerCnxnFactory> checkedOutServers = Sets.newConcurrentHashSet();
+
+    public PooledZooKeeperRuleConfig(int size) {
+        this(new InMemoryZooKeeperRuleConfig(), size);
+    }
+
+    public PooledZooKeeperRuleConfig(ZooKeeperRuleConfig delegate, int size) {
+        Preconditions.checkArgument(delegate != null);
+        Preconditions.checkArgument(size > 0, "Pool size must be positive");
+
+        this.delegate = delegate;
+        this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(size,
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("zookeeper-server-pool-%d")
+                        .build()));
+
+        for (int i = 0; i < size; i++) {
+            startServer();
+        }
+
+        this.shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        }, "zookeeper-server-pool-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    @Override
+    public ServerCnxnFactory getServer(int port) {
+        if (port != 0) {
+            return delegate.getServer(port);
+        }
+
+        Preconditions.checkState(!executor.isShutdown(), "Pool has already been closed");
+
+        ListenableFuture<ServerCnxnFactory> readyServer;
+        try {
+            readyServer = readyServers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        // keep the pool full, whether or not this server started successfully
+        startServer();
+
+        ServerCnxnFactory cnxnFactory;
+        try {
+            cnxnFactory = readyServer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // as if the delegate had been called directly, so that callers can tell bind failures apart
+            Throwables.propagateIfPossible(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+
+        checkedOutServers.add(cnxnFactory);
+        return cnxnFactory;
+    }
+
+    @Override
+    public void releaseServer(final ServerCnxnFactory cnxnFactory) {
+        if (!checkedOutServers.remove(cnxnFactory)) {
+            ZooKeeperServers.releaseServer(delegate, cnxnFactory);
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ZooKeeperServers.releaseServer(delegate, cnxnFactory);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the pool has been closed, so there is no background thread left to do this
+            ZooKeeperServers.releaseServer(delegate, cnxnFactory);
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        // the delegate is cleaned up in close(), since it still owns the servers waiting in the pool
+    }
+
+    /**
+     * Shuts down the servers waiting in the pool and cleans up the delegate. Servers that are
+     * checked out at this point are shut down when they are released, and servers still starting
+     * are shut down once they have started.
+     */
+    @Override
+    public void close() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // the JVM is already shutting down, possibly running this very hook
+        }
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.warn("Timed out waiting for pooled ZooKeeper servers to start or shut down");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<ListenableFuture<ServerCnxnFactory>> pendingServers = Lists.newArrayList();
+        readyServers.drainTo(pendingServers);
+        for (ListenableFuture<ServerCnxnFactory> readyServer : pendingServers) {
+            // runs right away for servers that are done starting
+            Futures.addCallback(readyServer, new FutureCallback<ServerCnxnFactory>() {
+                @Override
+                public void onSuccess(ServerCnxnFactory cnxnFactory) {
+                    ZooKeeperServers.releaseServer(delegate, cnxnFactory);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    LOGGER.debug("Pooled ZooKeeper server failed to start", t);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        // the delegate still owns the servers that are starting, so wait for them to be released
+        Futures.successfulAsList(pendingServers).addListener(new Runnable() {
+            @Override
+            public void run() {
+                delegate.cleanup();
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void startServer() {
+        readyServers.add(executor.submit(new Callable<ServerCnxnFactory>() {
+            @Override
+            public ServerCnxnFactory call() {
+                ServerCnxnFactory cnxnFactory = delegate.getServer(0);
+                LOGGER.debug("Pooled ZooKeeper server started at port {}", cnxnFactory.getLocalPort());
+                return cnxnFactory;
+            }
+        }));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The {@link PortStrategy}s for {@link LocalZooKeeperRule}.
+ * <p>
+ * The default strategy is given by the {@value #PORT_SYSTEM_PROPERTY_NAME} system property, which
+ * can be a port, such as {@code 9500}, a range of ports, such as {@code 9500-9599}, or a number of
+ * ports per forked test JVM starting at a port, such as {@code 9500+100}. If it is not set, port
+ * {@value #DEFAULT_PORT} is used.
+ *
+ * @author juang
+ */
+public final class PortStrategies {
+
+    private static final int DEFAULT_PORT = 9500;
+    private static final String PORT_SYSTEM_PROPERTY_NAME = "zookeeper.test.port";
+
+    /**
+     * Set by the build to tell forked test JVMs apart, {@value #GRADLE_FORK_SYSTEM_PROPERTY_NAME} is
+     * set by Gradle itself.
+     */
+    private static final String FORK_SYSTEM_PROPERTY_NAME = "zookeeper.test.fork";
+    private static final String GRADLE_FORK_SYSTEM_PROPERTY_NAME = "org.gradle.test.worker";
+
+    private static final int MAX_PORT = 65535;
+
+    /**
+     * Spreads the rules in a JVM over their range, so that they don't all try the same port first.
+     */
+    private static final AtomicInteger NEXT_PORT_IN_RANGE = new AtomicInteger();
+
+    private PortStrategies() {
+        // utility class
+    }
+
+    /**
+     * Always binds to port 0, letting the OS pick a free port. This never collides, but the port is
+     * different every time.
+     */
+    public static PortStrategy ephemeral() {
+        return fixed(0);
+    }
+
+    /**
+     * Binds to the given port, and fails if it is taken.
+     */
+    public static PortStrategy fixed(final int port) {
+        Preconditions.checkArgument(port >= 0 && port <= MAX_PORT, "Invalid port %s", port);
+
+        return new PortStrategy() {
+            @Override
+            public int getPort(int attempt) {
+                return attempt == 0 ? port : -1;
+            }
+
+            @Override
+            public String toString() {
+                return Integer.toString(port);
+            }
+        };
+    }
+
+    /**
+     * Binds to a port between {@code from} and {@code to}, both inclusive, trying every port in the
+     * range before giving up. Rules running at the same time start at different ports.
+     */
+    public static PortStrategy range(int from, int to) {
+        Preconditions.checkArgument(from > 0 && from <= to && to <= MAX_PORT, "Invalid port range %s-%s", from, to);
+
+        return new RangeStrategy(from, to);
+    }
+
+    /**
+     * Gives each forked test JVM its own range of {@code portsPerFork} ports, starting at
+     * {@code base} for the first fork. Forks are told apart by the
+     * {@value #FORK_SYSTEM_PROPERTY_NAME} system property, or the {@value #GRADLE_FORK_SYSTEM_PROPERTY_NAME}
+     * system property that Gradle sets in its test workers. Without either, this is the same as
+     * {@link #range(int, int)} starting at {@code base}.
+     */
+    public static PortStrategy perFork(int base, int portsPerFork) {
+        Preconditions.checkArgument(portsPerFork > 0 && base > 0 && base + portsPerFork - 1 <= MAX_PORT,
+                "Invalid ports per fork %s+%s", base, portsPerFork);
+
+        // worker ids keep increasing for the lifetime of a build daemon, so wrap them around
+        int forks = (MAX_PORT - base + 1) / portsPerFork;
+        int from = base + (getForkNumber() % forks) * portsPerFork;
+        return range(from, from + portsPerFork - 1);
+    }
+
+    /**
+     * Returns the strategy given by the {@value #PORT_SYSTEM_PROPERTY_NAME} system property, see the
+     * class documentation.
+     */
+    public static PortStrategy getDefault() {
+        String value = System.getProperty(PORT_SYSTEM_PROPERTY_NAME);
+        if (value == null) {
+            return fixed(DEFAULT_PORT);
+        }
+        return parse(value.trim());
+    }
+
+    /**
+     * Returns the first port of {@link #getDefault()}, for the rules that bind to a single port. This
+     * is the same on every call, so that such rules agree on the port.
+     */
+    public static int getDefaultPort() {
+        PortStrategy portStrategy = getDefault();
+        if (portStrategy instanceof RangeStrategy) {
+            return ((RangeStrategy) portStrategy).from;
+        }
+        return portStrategy.getPort(0);
+    }
+
+    /**
+     * Parses a port, such as {@code 9500}, a range of ports, such as {@code 9500-9599}, or ports per
+     * fork, such as {@code 9500+100}.
+     */
+    public static PortStrategy parse(String value) {
+        try {
+            int rangeSeparator = value.indexOf('-');
+            if (rangeSeparator > 0) {
+                return range(Integer.parseInt(value.substring(0, rangeSeparator)),
+                        Integer.parseInt(value.substring(rangeSeparator + 1)));
+            }
+
+            int forkSeparator = value.indexOf('+');
+            if (forkSeparator > 0) {
+                return perFork(Integer.parseInt(value.substring(0, forkSeparator)),
+                        Integer.parseInt(value.substring(forkSeparator + 1)));
+            }
+
+            return fixed(Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port strategy " + value, e);
+        }
+    }
+
+    private static int getForkNumber() {
+        Integer fork = Integer.getInteger(FORK_SYSTEM_PROPERTY_NAME);
+        if (fork == null) {
+            fork = Integer.getInteger(GRADLE_FORK_SYSTEM_PROPERTY_NAME, 0);
+        }
+        return Math.max(fork, 0);
+    }
+
+    private static final class RangeStrategy implements PortStrategy {
+        private final int from;
+        private final int to;
+        private final int size;
+
+        /**
+         * Where the attempts of the current thread started, since rules may share a strategy.
+         */
+        private final ThreadLocal<Integer> start = new ThreadLocal<>();
+
+        RangeStrategy(int from, int to) {
+            this.from = from;
+            this.to = to;
+            this.size = to - from + 1;
+        }
+
+        @Override
+        public int getPort(int attempt) {
+            if (attempt >= size) {
+                return -1;
+            }
+            if (attempt == 0 || start.get() == null) {
+                start.set((NEXT_PORT_IN_RANGE.getAndIncrement() & Integer.MAX_VALUE) % size);
+            }
+            return from + (start.get() + attempt) % size;
+        }
+
+        @Override
+        public String toString() {
+            return from + "-" + to;
+        }
+    }
+}
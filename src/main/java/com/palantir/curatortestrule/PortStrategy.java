@@ -0,0 +1,33 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+/**
+ * Decides which port a {@link LocalZooKeeperRule} binds its server to. If the port is taken, the rule
+ * asks for another one, until the strategy runs out of ports. See {@link PortStrategies} for the
+ * available strategies.
+ *
+ * @author juang
+ */
+public interface PortStrategy {
+
+    /**
+     * Returns the port to bind to on the given attempt, starting at 0, or -1 if there is no other
+     * port to try. Port 0 lets the OS pick a free port.
+     */
+    int getPort(int attempt);
+}
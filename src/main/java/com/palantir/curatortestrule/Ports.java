@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ServerSocket;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Utilities for picking ports.
+ *
+ * @author juang
+ */
+final class Ports {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Ports.class);
+
+    private Ports() {
+        // utility class
+    }
+
+    /**
+     * Returns a port that was free when this method was called.
+     * <p>
+     * WARNING: the port is released before this method returns, so another process may bind to it
+     * before the caller does. Only use this where the port has to be known before the socket can be
+     * bound, and bind to port 0 everywhere else.
+     */
+    static int findFreePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            socket.setReuseAddress(true);
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not find a free port", e);
+        }
+    }
+
+    /**
+     * Gets a server from the config on the ports given by the strategy, moving on to the next port
+     * whenever one is already taken.
+     *
+     * @throws IllegalStateException if every port of the strategy is taken
+     */
+    static ServerCnxnFactory getServer(ZooKeeperRuleConfig ruleConfig, PortStrategy portStrategy) {
+        RuntimeException lastBindFailure = null;
+        for (int attempt = 0;; attempt++) {
+            int port = portStrategy.getPort(attempt);
+            if (port < 0) {
+                throw new IllegalStateException("Could not bind a ZooKeeper server to any of the ports "
+                        + portStrategy + " after " + attempt + " attempts", lastBindFailure);
+            }
+
+            try {
+                return ruleConfig.getServer(port);
+            } catch (RuntimeException e) {
+                if (!isBindFailure(e)) {
+                    throw e;
+                }
+                LOGGER.debug("Port {} is already taken, trying another one", port);
+                lastBindFailure = e;
+            }
+        }
+    }
+
+    private static boolean isBindFailure(Throwable t) {
+        for (Throwable cause : Throwables.getCausalChain(t)) {
+            if (cause instanceof BindException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+
+/**
+ * A {@link ZooKeeperRuleConfig} that wants to be told when a rule is done with a server, instead of
+ * the rule shutting it down.
+ * <p>
+ * Rules call {@link #releaseServer(ServerCnxnFactory)} on configs implementing this interface, and
+ * {@link ServerCnxnFactory#shutdown()} on any other config.
+ *
+ * @author juang
+ */
+public interface ReleasingZooKeeperRuleConfig extends ZooKeeperRuleConfig {
+
+    /**
+     * Called once the rule no longer needs a {@link ServerCnxnFactory} returned by
+     * {@link #getServer(int)}. Implementations will usually just shut it down.
+     */
+    void releaseServer(ServerCnxnFactory cnxnFactory);
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.server.Request;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AtomicLongMap;
+
+/**
+ * Counts the requests a server receives per namespace, which is the first element of the
+ * requests' paths, and per operation. Only operations on a path are counted. A multi() is counted
+ * once, as an operation named "multi", under the namespace of its first operation.
+ *
+ * @author juang
+ */
+final class RequestCounters {
+
+    private final ConcurrentMap<String, AtomicLongMap<String>> countsByNamespace = Maps.newConcurrentMap();
+
+    void record(Request request) {
+        String operation = getOperation(request.type);
+        if (operation == null || request.request == null) {
+            return;
+        }
+
+        ByteBuffer buffer = request.request.duplicate();
+        if (request.type == OpCode.multi) {
+            // skip the header of the first operation: its type, whether it is the last one, and an error code
+            if (buffer.remaining() < 9 || buffer.get(buffer.position() + 4) != 0) {
+                return;
+            }
+            buffer.position(buffer.position() + 9);
+        }
+
+        String namespace = readNamespace(buffer);
+        if (namespace == null) {
+            return;
+        }
+
+        AtomicLongMap<String> counts = countsByNamespace.get(namespace);
+        if (counts == null) {
+            AtomicLongMap<String> newCounts = AtomicLongMap.create();
+            counts = countsByNamespace.putIfAbsent(namespace, newCounts);
+            if (counts == null) {
+                counts = newCounts;
+            }
+        }
+        counts.incrementAndGet(operation);
+    }
+
+    /**
+     * Returns the number of requests per operation in the given namespace.
+     */
+    Map<String, Long> getCounts(String namespace) {
+        AtomicLongMap<String> counts = countsByNamespace.get(namespace);
+        if (counts == null) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.copyOf(counts.asMap());
+    }
+
+    void reset() {
+        countsByNamespace.clear();
+    }
+
+    /**
+     * Reads the path at the start of a request and returns its first element, without moving the
+     * buffer that the server reads the request from.
+     */
+    @CheckForNull
+    private static String readNamespace(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+
+        int length = buffer.getInt();
+        if (length <= 1 || length > buffer.remaining()) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        String path = new String(bytes, StandardCharsets.UTF_8);
+
+        int end = path.indexOf('/', 1);
+        return end < 0 ? path.substring(1) : path.substring(1, end);
+    }
+
+    @CheckForNull
+    private static String getOperation(int type) {
+        switch (type) {
+            case OpCode.create:
+                return "create";
+            case OpCode.delete:
+                return "delete";
+            case OpCode.exists:
+                return "exists";
+            case OpCode.getData:
+                return "getData";
+            case OpCode.setData:
+                return "setData";
+            case OpCode.getACL:
+                return "getACL";
+            case OpCode.setACL:
+                return "setACL";
+            case OpCode.getChildren:
+            case OpCode.getChildren2:
+                return "getChildren";
+            case OpCode.sync:
+                return "sync";
+            case OpCode.check:
+                return "check";
+            case OpCode.multi:
+                return "multi";
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.zookeeper.server.NettyServerCnxnFactory;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.socket.nio.NioServerBossPool;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioWorkerPool;
+import org.jboss.netty.util.ThreadNameDeterminer;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Utilities for creating {@link ServerCnxnFactory}s of a given class.
+ *
+ * @author juang
+ */
+final class ServerCnxnFactories {
+
+    /**
+     * Netty's defaults, which only apply when the channel factory is created without thread counts.
+     */
+    private static final int DEFAULT_NETTY_BOSS_THREADS = 1;
+    private static final int DEFAULT_NETTY_WORKER_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+
+    private ServerCnxnFactories() {
+        // utility class
+    }
+
+    /**
+     * Creates a factory of the given class, or of the class set by ZooKeeper's
+     * zookeeper.serverCnxnFactory system property if the class is null. The Netty factory's
+     * constructor is package-private, ZooKeeper itself only creates it reflectively.
+     */
+    static ServerCnxnFactory create(@CheckForNull Class<? extends ServerCnxnFactory> cnxnFactoryClass)
+            throws IOException {
+        if (cnxnFactoryClass == null) {
+            return ServerCnxnFactory.createFactory();
+        }
+
+        try {
+            Constructor<? extends ServerCnxnFactory> constructor = cnxnFactoryClass.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor.newInstance();
+        } catch (InvocationTargetException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Could not create " + cnxnFactoryClass.getName(), e);
+        }
+    }
+
+    /**
+     * Replaces the channel factory of an unstarted Netty factory by one with the given numbers of
+     * threads, and sets the socket buffer sizes of its connections. Zero keeps Netty's default.
+     */
+    static void configureNetty(NettyServerCnxnFactory cnxnFactory, int bossThreads, int workerThreads,
+            int receiveBufferSize, int sendBufferSize) {
+        ServerBootstrap bootstrap = NettyFields.getBootstrap(cnxnFactory);
+
+        if (bossThreads > 0 || workerThreads > 0) {
+            // keep the names of the executors' threads rather than Netty's "New I/O worker #1"
+            ServerBootstrap newBootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+                    new NioServerBossPool(newNettyExecutor("zookeeper-netty-boss-%d"),
+                            bossThreads > 0 ? bossThreads : DEFAULT_NETTY_BOSS_THREADS, ThreadNameDeterminer.CURRENT),
+                    new NioWorkerPool(newNettyExecutor("zookeeper-netty-worker-%d"),
+                            workerThreads > 0 ? workerThreads : DEFAULT_NETTY_WORKER_THREADS,
+                            ThreadNameDeterminer.CURRENT)));
+            newBootstrap.setOptions(bootstrap.getOptions());
+            newBootstrap.setPipeline(bootstrap.getPipeline());
+
+            NettyFields.setBootstrap(cnxnFactory, newBootstrap);
+            bootstrap.releaseExternalResources();
+            bootstrap = newBootstrap;
+        }
+
+        if (receiveBufferSize > 0) {
+            bootstrap.setOption("child.receiveBufferSize", receiveBufferSize);
+        }
+        if (sendBufferSize > 0) {
+            bootstrap.setOption("child.sendBufferSize", sendBufferSize);
+        }
+    }
+
+    private static ExecutorService newNettyExecutor(String nameFormat) {
+        return Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat(nameFormat)
+                .build());
+    }
+
+    /**
+     * Starts the factory's server. The Netty factory keeps reporting the port it was configured
+     * with, so when that was port 0 it is corrected to the port the OS picked.
+     */
+    static void startup(ServerCnxnFactory cnxnFactory, ZooKeeperServer zkServer)
+            throws IOException, InterruptedException {
+        cnxnFactory.startup(zkServer);
+
+        if (cnxnFactory instanceof NettyServerCnxnFactory && cnxnFactory.getLocalPort() == 0) {
+            NettyFields.fixLocalAddress((NettyServerCnxnFactory) cnxnFactory);
+        }
+    }
+
+    /**
+     * Only loaded for the Netty factory.
+     */
+    private static final class NettyFields {
+        private static final Field PARENT_CHANNEL_FIELD = getField("parentChannel");
+        private static final Field LOCAL_ADDRESS_FIELD = getField("localAddress");
+        private static final Field BOOTSTRAP_FIELD = getField("bootstrap");
+
+        private static ServerBootstrap getBootstrap(NettyServerCnxnFactory cnxnFactory) {
+            try {
+                return (ServerBootstrap) BOOTSTRAP_FIELD.get(cnxnFactory);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void setBootstrap(NettyServerCnxnFactory cnxnFactory, ServerBootstrap bootstrap) {
+            try {
+                BOOTSTRAP_FIELD.set(cnxnFactory, bootstrap);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void fixLocalAddress(NettyServerCnxnFactory cnxnFactory) {
+            try {
+                Channel parentChannel = (Channel) PARENT_CHANNEL_FIELD.get(cnxnFactory);
+                LOCAL_ADDRESS_FIELD.set(cnxnFactory, (InetSocketAddress) parentChannel.getLocalAddress());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static Field getField(String name) {
+            try {
+                Field field = NettyServerCnxnFactory.class.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+    }
+}
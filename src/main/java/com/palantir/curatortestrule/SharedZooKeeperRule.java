@@ -16,19 +16,33 @@
 
 package com.palantir.curatortestrule;
 
-import java.util.Map;
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.CheckForNull;
 
+import org.apache.curator.RetryPolicy;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.server.ServerCnxnFactory;
 import org.junit.runners.model.Statement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Multiset;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * A {@link ZooKeeperRule} that shares servers based on the port number specified in the
@@ -40,9 +54,29 @@ import com.google.common.collect.Multiset;
  * {@link ZooKeeperRuleConfig} started by this class will be closed after execution of the JUnit
  * {@link Statement} only if it is the last {@link SharedZooKeeperRule} that references it.
  * <p>
+ * A server that is no longer referenced can be kept alive for a linger period, so that rules running
+ * one after another (such as the {@code @ClassRule}s of sequentially executed test classes) also
+ * share it. A lingering server that is picked up again has all of its nodes deleted first. The
+ * linger period defaults to the value of the {@value #LINGER_SYSTEM_PROPERTY_NAME} system property in
+ * milliseconds, or 0 if it is not set. {@link #LINGER_UNTIL_JVM_EXIT} keeps servers alive until the
+ * JVM shuts down.
+ * <p>
  * If port 0 is specified, then the port provided by the OS will be used. Unlike
  * {@link LocalZooKeeperRule}, the same server will be shared among all tests specifying port 0.
  * <p>
+ * Rules created with {@link #withPooledClients()} share their clients too, see there for the
+ * caveats.
+ * <p>
+ * Setting the {@value #CROSS_PROCESS_SYSTEM_PROPERTY_NAME} system property to true shares servers
+ * between JVMs as well, such as the forked test workers of a build. The first JVM to need a server
+ * for a port starts it on port 0 instead, and the other JVMs attach to it. They coordinate through
+ * files in {@code ${java.io.tmpdir}/curator-test-rule}, or the directory given by the
+ * {@value #CROSS_PROCESS_DIRECTORY_SYSTEM_PROPERTY_NAME} system property. The JVM that started a
+ * server keeps it alive until it exits, and then waits for the other JVMs to detach before it exits.
+ * Since the server runs in another JVM, {@link #captureSnapshot(File)} and
+ * {@link #loadSnapshot(File)} are not available to the JVMs that attached to it, and lingering servers
+ * are not wiped before they are reused.
+ * <p>
  * WARNING: Since {@link ZooKeeperRuleConfig} instances are shared, behavior is undefined if two
  * different {@link SharedZooKeeperRule}s share a server on the same port while expecting different
  * {@link ZooKeeperRuleConfig} implementations.
@@ -51,82 +85,451 @@ import com.google.common.collect.Multiset;
  */
 public final class SharedZooKeeperRule extends ZooKeeperRule {
 
+    /**
+     * Linger period that keeps unreferenced servers alive until the JVM shuts down.
+     */
+    public static final long LINGER_UNTIL_JVM_EXIT = -1;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(SharedZooKeeperRule.class);
 
+    private static final String LINGER_SYSTEM_PROPERTY_NAME = "zookeeper.test.linger";
+    private static final String CROSS_PROCESS_SYSTEM_PROPERTY_NAME = "zookeeper.test.crossprocess";
+    private static final String CROSS_PROCESS_DIRECTORY_SYSTEM_PROPERTY_NAME = "zookeeper.test.crossprocess.dir";
+
     private static final SharedServerManager SHARED_SERVER_MANAGER = new SharedServerManager();
 
+    private final long lingerMillis;
+
+    @CheckForNull
+    private final File crossProcessDirectory = getCrossProcessDirectory();
+
+    private volatile boolean pooledClients = false;
+
+    @CheckForNull
+    private SharedServer server;
+
     @CheckForNull
     private ServerCnxnFactory cnxnFactory;
 
     public SharedZooKeeperRule() {
         super();
+        this.lingerMillis = getDefaultLingerMillis();
     }
 
     public SharedZooKeeperRule(String namespace, int port, ZooKeeperRuleConfig serverWrapper) {
+        this(namespace, port, serverWrapper, getDefaultLingerMillis());
+    }
+
+    /**
+     * Creates a rule whose server is kept alive for {@code lingerMillis} after the last rule
+     * referencing it is done with it, or until the JVM exits if {@link #LINGER_UNTIL_JVM_EXIT} is
+     * given.
+     */
+    public SharedZooKeeperRule(String namespace, int port, ZooKeeperRuleConfig serverWrapper, long lingerMillis) {
         super(namespace, port, serverWrapper);
+        Preconditions.checkArgument(lingerMillis >= 0 || lingerMillis == LINGER_UNTIL_JVM_EXIT,
+                "Linger period must not be negative");
+
+        this.lingerMillis = lingerMillis;
     }
 
+    /**
+     * Makes {@link #getClient()} hand out views of a client that is shared by all rules with pooled
+     * clients on the same server, instead of starting a new client each time. This saves the
+     * connection and session setup, as well as the client's threads, for every test. Returns this
+     * rule.
+     * <p>
+     * Only the client of {@link #getClient()} is pooled: {@link #getClient(RetryPolicy)} with any
+     * other retry policy starts a new client, which is closed after the test. The views are scoped to
+     * this rule's namespace, but they share a session: ephemeral nodes, watches and listeners outlive
+     * the test that created them, and the views can't be closed. The shared client is closed when the
+     * server shuts down.
+     * <p>
+     * A view is already connected, so {@link ZooKeeperRuleListener}s only hear about its
+     * {@link ZooKeeperRulePhase#GET_CLIENT} phase, never a {@link ZooKeeperRulePhase#CONNECT_CLIENT}
+     * one. A rule with an {@link EventLatencyRecorder} doesn't pool its clients, since the recorder
+     * would also hear from the other rules' views and keep listening after this rule is done.
+     */
+    public SharedZooKeeperRule withPooledClients() {
+        this.pooledClients = true;
+        return this;
+    }
+
+    /**
+     * Returns a view of the pooled client if this rule was created with {@link #withPooledClients()}
+     * and the default retry policy is given, and a new client otherwise, or if the rule has an
+     * {@link EventLatencyRecorder}.
+     */
     @Override
-    protected void before() {
-        super.before();
+    public CuratorFramework getClient(RetryPolicy retryPolicy) {
+        if (!pooledClients || retryPolicy != DEFAULT_RETRY_POLICY || hasEventLatencyRecorder()) {
+            return super.getClient(retryPolicy);
+        }
+
+        Preconditions.checkState(this.server != null);
 
-        this.cnxnFactory = SHARED_SERVER_MANAGER.acquireServer(this.ruleConfig, port);
+        long startNanos = System.nanoTime();
+        CuratorFramework client = this.server.getPooledClient().usingNamespace(namespace);
+        recordPhase(ZooKeeperRulePhase.GET_CLIENT, startNanos);
+        return client;
+    }
+
+    @Override
+    protected void startServer() {
+        this.server = SHARED_SERVER_MANAGER.acquireServer(this);
+        this.cnxnFactory = this.server.get();
     }
 
     @Override
     protected void closeServer() {
-        if (this.cnxnFactory != null) {
-            LOGGER.debug("Closing ZooKeeper server at port {}", this.cnxnFactory.getLocalPort());
-            SHARED_SERVER_MANAGER.releaseServer(port);
+        if (this.server != null) {
+            LOGGER.debug("Releasing ZooKeeper server at port {}", port);
+            SHARED_SERVER_MANAGER.releaseServer(this.server, lingerMillis);
+            this.server = null;
+            this.cnxnFactory = null;
         } else {
             LOGGER.debug("Cannot close ZooKeeper server. It is likely that it had trouble starting.");
         }
     }
 
+    /**
+     * Returns false, since other rules may still be using the server.
+     */
+    @Override
+    protected boolean isServerShutDownAfterClients() {
+        return false;
+    }
+
+    @Override
+    protected void cleanup() {
+        // other rules may still be using the server, it is cleaned up once it is actually shut down
+    }
+
     @Override
     protected ServerCnxnFactory getCnxnFactory() {
-        Preconditions.checkState(this.cnxnFactory != null);
+        Preconditions.checkState(this.server != null);
+        Preconditions.checkState(this.cnxnFactory != null,
+                "The ZooKeeper server at port %s runs in another JVM", this.server.getLocalPort());
 
         return cnxnFactory;
     }
 
+    @Override
+    protected String getConnectString() {
+        Preconditions.checkState(this.server != null);
+
+        return "127.0.0.1:" + this.server.getLocalPort();
+    }
+
+    public static long getDefaultLingerMillis() {
+        return Long.getLong(LINGER_SYSTEM_PROPERTY_NAME, 0L);
+    }
+
+    /**
+     * Returns the directory through which servers are shared with other JVMs, or null if they
+     * aren't.
+     */
+    @CheckForNull
+    private static File getCrossProcessDirectory() {
+        String directory = System.getProperty(CROSS_PROCESS_DIRECTORY_SYSTEM_PROPERTY_NAME);
+        if (directory != null) {
+            return new File(directory);
+        }
+
+        if (Boolean.getBoolean(CROSS_PROCESS_SYSTEM_PROPERTY_NAME)) {
+            return new File(System.getProperty("java.io.tmpdir"), "curator-test-rule");
+        }
+        return null;
+    }
+
+    /**
+     * Keeps one {@link SharedServer} per port. Servers on different ports are started and shut down
+     * independently, so a slow startup on one port never blocks rules using another port.
+     */
     private static final class SharedServerManager {
-        private final Multiset<Integer> portReferenceCounts = HashMultiset.create();
-        private final Map<Integer, ServerCnxnFactory> servers = Maps.newHashMap();
+        private final ConcurrentMap<Integer, SharedServer> servers = new ConcurrentHashMap<>();
+        private final ScheduledExecutorService lingerExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("shared-zookeeper-linger-%d")
+                        .build());
 
-        private synchronized ServerCnxnFactory acquireServer(ZooKeeperRuleConfig ruleConfig, int port) {
-            int prevCount = portReferenceCounts.count(port);
+        private SharedServerManager() {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (SharedServer server : servers.values()) {
+                        if (server.close()) {
+                            LOGGER.debug("Closed lingering ZooKeeper server at port {} on JVM exit", server.port);
+                        }
+                    }
+                }
+            }, "shared-zookeeper-shutdown"));
+        }
 
-            if (prevCount == 0) {
-                LOGGER.debug("Starting new ZooKeeper server at port {}", port);
+        private SharedServer acquireServer(SharedZooKeeperRule rule) {
+            int port = rule.port;
+            while (true) {
+                SharedServer server = servers.get(port);
 
-                ServerCnxnFactory cnxnFactory = ruleConfig.getServer(port);
+                if (server == null) {
+                    SharedServer newServer = new SharedServer(rule.ruleConfig, port, rule.crossProcessDirectory);
+                    server = servers.putIfAbsent(port, newServer);
 
-                if (port == 0) {
-                    LOGGER.debug("ZooKeeper server bound to 0 actually started at port {}", cnxnFactory.getLocalPort());
-                } else {
-                    LOGGER.debug("ZooKeeper server started at port {}", cnxnFactory.getLocalPort());
+                    if (server == null) {
+                        LOGGER.debug("Starting new ZooKeeper server at port {}", port);
+
+                        try {
+                            newServer.start(rule);
+                            return newServer;
+                        } catch (RuntimeException e) {
+                            newServer.startupFailed();
+                            servers.remove(port, newServer);
+                            throw e;
+                        }
+                    }
+                }
+
+                if (server.retain()) {
+                    LOGGER.debug("Using existing ZooKeeper server at port {}", port);
+                    return server;
                 }
 
-                servers.put(port, cnxnFactory);
+                // the server was just closed, wait for it to go away and start a new one
+                server.awaitShutdown();
+                servers.remove(port, server);
+            }
+        }
+
+        /**
+         * Releases a server retained by {@link #acquireServer(SharedZooKeeperRule)}. The server may
+         * have been replaced on its port in the meantime if it failed to start.
+         */
+        private void releaseServer(final SharedServer server, long lingerMillis) {
+            if (!server.release()) {
+                return;
+            }
+
+            int port = server.port;
+            if (server.isCrossProcessOwner()) {
+                // other JVMs may be using the server, the shutdown hook waits for them to be done
+                LOGGER.debug("ZooKeeper server at port {} is unused by this JVM, keeping it for other JVMs", port);
+            } else if (lingerMillis == 0) {
+                closeServer(server);
+            } else if (lingerMillis != LINGER_UNTIL_JVM_EXIT) {
+                LOGGER.debug("ZooKeeper server at port {} is unused, closing it in {} ms", port, lingerMillis);
+                server.scheduleClose(lingerExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeServer(server);
+                    }
+                }, lingerMillis, TimeUnit.MILLISECONDS));
+            }
+        }
+
+        private void closeServer(SharedServer server) {
+            if (server.close()) {
+                servers.remove(server.port, server);
+            }
+        }
+    }
+
+    /**
+     * A server together with the number of rules referencing it. The rule that starts the server
+     * holds the first reference. A server whose last reference was released either lingers, in which
+     * case the next {@link #retain()} wipes and revives it, or is closed, after which it can never be
+     * retained again.
+     * <p>
+     * When sharing with other JVMs, the server may run in another JVM, in which case the startup
+     * yields no {@link ServerCnxnFactory} and the server is only known by its port.
+     */
+    private static final class SharedServer {
+        private final ZooKeeperRuleConfig ruleConfig;
+        private final int port;
+        private final FutureTask<ServerCnxnFactory> startup;
+        private final CountDownLatch shutdownLatch = new CountDownLatch(1);
+
+        private int referenceCount = 1;
+        private boolean closed = false;
+
+        @CheckForNull
+        private CuratorFramework pooledClient;
+
+        @CheckForNull
+        private Future<?> scheduledClose;
+
+        /**
+         * Set by the startup when sharing with other JVMs.
+         */
+        @CheckForNull
+        private volatile CrossProcessServer crossProcessServer;
+
+        private SharedServer(final ZooKeeperRuleConfig ruleConfig, final int port,
+                @CheckForNull final File crossProcessDirectory) {
+            this.ruleConfig = ruleConfig;
+            this.port = port;
+            this.startup = new FutureTask<>(new Callable<ServerCnxnFactory>() {
+                @Override
+                public ServerCnxnFactory call() {
+                    if (crossProcessDirectory == null) {
+                        return ruleConfig.getServer(port);
+                    }
+
+                    crossProcessServer = CrossProcessServer.acquire(crossProcessDirectory, port, ruleConfig);
+                    return crossProcessServer.getCnxnFactory();
+                }
+            });
+        }
+
+        private void start(ZooKeeperRule rule) {
+            long startNanos = System.nanoTime();
+            startup.run();
+            get();
+            rule.recordPhase(ZooKeeperRulePhase.GET_SERVER, startNanos);
+
+            if (port == 0) {
+                LOGGER.debug("ZooKeeper server bound to 0 actually started at port {}", getLocalPort());
             } else {
-                LOGGER.debug("Using existing ZooKeeper server at port {}", port);
+                LOGGER.debug("ZooKeeper server started at port {}", getLocalPort());
             }
+        }
 
-            portReferenceCounts.add(port);
+        private int getLocalPort() {
+            ServerCnxnFactory cnxnFactory = get();
+            if (crossProcessServer != null) {
+                return crossProcessServer.getPort();
+            }
+            return cnxnFactory.getLocalPort();
+        }
 
-            return servers.get(port);
+        private boolean isCrossProcessOwner() {
+            get();
+            return crossProcessServer != null && crossProcessServer.isOwner();
         }
 
-        private synchronized void releaseServer(int port) {
-            portReferenceCounts.remove(port);
+        /**
+         * Returns the server once it started, or null if it runs in another JVM.
+         */
+        @CheckForNull
+        private ServerCnxnFactory get() {
+            try {
+                return Uninterruptibles.getUninterruptibly(startup);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause());
+                throw new RuntimeException(e.getCause());
+            }
+        }
 
-            if (portReferenceCounts.count(port) == 0) {
-                ServerCnxnFactory cnxnFactory = servers.remove(port);
+        private synchronized CuratorFramework getPooledClient() {
+            Preconditions.checkState(!closed);
+
+            if (pooledClient == null) {
+                LOGGER.debug("Starting pooled curator client for ZooKeeper server at port {}", port);
+                pooledClient = CuratorFrameworkFactory.newClient("127.0.0.1:" + getLocalPort(), DEFAULT_RETRY_POLICY);
+                pooledClient.start();
+            }
+            return pooledClient;
+        }
 
-                LOGGER.debug("Closing ZooKeeper server at port {}", cnxnFactory.getLocalPort());
+        private synchronized boolean retain() {
+            if (closed) {
+                return false;
+            }
+
+            if (referenceCount == 0) {
+                if (scheduledClose != null) {
+                    scheduledClose.cancel(false);
+                    scheduledClose = null;
+                }
+
+                LOGGER.debug("Reusing lingering ZooKeeper server at port {}", port);
+
+                // other JVMs may still have nodes on a server shared with them
+                if (crossProcessServer == null) {
+                    deleteAllNodes();
+                }
+
+                // the pooled client remembers which namespaces it already created
+                closePooledClient();
+            }
+
+            referenceCount++;
+            return true;
+        }
+
+        /**
+         * Returns true if this released the last reference of a server that is still running.
+         */
+        private synchronized boolean release() {
+            Preconditions.checkState(referenceCount > 0);
+
+            referenceCount--;
+            return referenceCount == 0 && !closed;
+        }
+
+        /**
+         * Marks a server that failed to start as closed, so that it is never retained again. The
+         * rules that retained it while it was starting can still release it.
+         */
+        private synchronized void startupFailed() {
+            closed = true;
+            shutdownLatch.countDown();
+        }
+
+        private synchronized void scheduleClose(Future<?> close) {
+            this.scheduledClose = close;
+        }
+
+        /**
+         * Shuts the server down if it is not referenced anymore. Returns true if it was shut down.
+         */
+        private synchronized boolean close() {
+            if (closed || referenceCount > 0) {
+                return false;
+            }
+
+            closed = true;
+            try {
+                ServerCnxnFactory cnxnFactory = get();
+
+                LOGGER.debug("Closing ZooKeeper server at port {}", getLocalPort());
+
+                closePooledClient();
+
+                if (crossProcessServer != null) {
+                    crossProcessServer.close();
+                } else {
+                    ZooKeeperServers.releaseServer(ruleConfig, cnxnFactory);
+                    ruleConfig.cleanup();
+                }
+            } finally {
+                shutdownLatch.countDown();
+            }
+            return true;
+        }
+
+        private synchronized void closePooledClient() {
+            if (pooledClient != null) {
+                pooledClient.close();
+                pooledClient = null;
+            }
+        }
+
+        private void awaitShutdown() {
+            Uninterruptibles.awaitUninterruptibly(shutdownLatch);
+        }
 
-                cnxnFactory.shutdown();
+        private void deleteAllNodes() {
+            CuratorFramework client = CuratorFrameworkFactory.newClient(
+                    "127.0.0.1:" + getLocalPort(),
+                    new ExponentialBackoffRetry(1000, 3));
+            try {
+                client.start();
+                ZNodes.deleteChildren(client, "/");
+            } catch (Exception e) {
+                throw new RuntimeException("Could not delete the nodes left on the ZooKeeper server at port " + port, e);
+            } finally {
+                client.close();
             }
         }
     }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A node to be created by {@link ZooKeeperRule#bulkLoad(Iterable)}: a path relative to the rule's
+ * namespace, and the node's data.
+ *
+ * @author juang
+ */
+public final class ZNode {
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    private final String path;
+    private final byte[] data;
+
+    private ZNode(String path, byte[] data) {
+        this.path = path;
+        this.data = data;
+    }
+
+    public static ZNode of(String path) {
+        return of(path, NO_DATA);
+    }
+
+    public static ZNode of(String path, byte[] data) {
+        Preconditions.checkArgument(path != null && path.startsWith("/") && path.length() > 1,
+                "Invalid path %s", path);
+        Preconditions.checkArgument(data != null);
+
+        return new ZNode(path, data);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the node's data. The array is not copied, so it can be shared by many nodes.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.util.List;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+/**
+ * Utilities for manipulating whole trees of znodes.
+ *
+ * @author juang
+ */
+final class ZNodes {
+
+    /**
+     * The node ZooKeeper keeps its own data under. It can't be deleted. Within a namespace, a node
+     * with this name is just a regular node.
+     */
+    private static final String ZOOKEEPER_NODE = "/zookeeper";
+
+    /**
+     * Number of operations sent in a single multi() request. This keeps requests well below the
+     * default 1MB jute.maxbuffer limit.
+     */
+    private static final int MAX_OPERATIONS_PER_TRANSACTION = 1000;
+
+    private ZNodes() {
+        // utility class
+    }
+
+    /**
+     * Deletes every descendant of the given path, but not the path itself.
+     * <p>
+     * Nodes are deleted in batches of multi() requests rather than one request per node. If a batch
+     * fails because nodes disappeared concurrently, that batch is retried one node at a time.
+     */
+    static void deleteChildren(CuratorFramework client, String path) throws Exception {
+        // children are always listed after their parents, so deleting in reverse never hits a parent first
+        List<String> descendants = Lists.reverse(listDescendants(client, path));
+
+        for (List<String> batch : Lists.partition(descendants, MAX_OPERATIONS_PER_TRANSACTION)) {
+            try {
+                CuratorTransaction transaction = client.inTransaction();
+                for (String descendant : batch) {
+                    transaction = transaction.delete().forPath(descendant).and();
+                }
+                ((CuratorTransactionFinal) transaction).commit();
+            } catch (KeeperException.NoNodeException e) {
+                deleteOneByOne(client, batch);
+            }
+        }
+    }
+
+    private static void deleteOneByOne(CuratorFramework client, List<String> paths) throws Exception {
+        for (String path : paths) {
+            try {
+                client.delete().forPath(path);
+            } catch (KeeperException.NoNodeException e) {
+                // already gone
+            }
+        }
+    }
+
+    /**
+     * Lists every descendant of the given path in breadth-first order. The internal
+     * {@value #ZOOKEEPER_NODE} node is never listed, unless the client has a namespace.
+     */
+    static List<String> listDescendants(CuratorFramework client, String path) throws Exception {
+        boolean skipZooKeeperNode = Strings.isNullOrEmpty(client.getNamespace());
+        List<String> descendants = Lists.newArrayList();
+        descendants.add(path);
+
+        for (int i = 0; i < descendants.size(); i++) {
+            String parent = descendants.get(i);
+
+            List<String> children;
+            try {
+                children = client.getChildren().forPath(parent);
+            } catch (KeeperException.NoNodeException e) {
+                continue;
+            }
+
+            for (String child : children) {
+                String childPath = ZKPaths.makePath(parent, child);
+                if (!skipZooKeeperNode || !childPath.equals(ZOOKEEPER_NODE)) {
+                    descendants.add(childPath);
+                }
+            }
+        }
+
+        return descendants.subList(1, descendants.size());
+    }
+}
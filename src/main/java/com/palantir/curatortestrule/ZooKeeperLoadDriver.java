@@ -0,0 +1,449 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Sends a mix of {@link LoadOperation}s to the server of a {@link ZooKeeperRule} from several
+ * threads and clients for a fixed duration, and reports the throughput and latencies in a
+ * {@link ZooKeeperLoadReport}. Useful for measuring how recipes behave under contention, or how a
+ * server config performs:
+ *
+ * <pre>
+ * ZooKeeperLoadReport report = new ZooKeeperLoadDriver(rule)
+ *         .clients(4)
+ *         .threads(16)
+ *         .operation(LoadOperation.GET_DATA, 8)
+ *         .operation(LoadOperation.SET_DATA, 2)
+ *         .duration(10, TimeUnit.SECONDS)
+ *         .run();
+ * </pre>
+ *
+ * The operations work on a fixed set of nodes under {@value #ROOT}, which are created before the
+ * run. Threads share the clients round-robin, and every thread picks operations at random in
+ * proportion to their weights. The clients are the rule's, so they are closed along with it.
+ * <p>
+ * Creates of nodes that exist, and other operations on nodes that don't, are bound to happen when
+ * creates and deletes are mixed. They are reported as conflicts, apart from the operations that
+ * succeeded and those that failed.
+ * <p>
+ * {@link #main(String[])} runs the driver against a {@link LocalZooKeeperRule} of its own.
+ *
+ * @author juang
+ */
+public final class ZooKeeperLoadDriver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ZooKeeperLoadDriver.class);
+
+    private static final String ROOT = "/load";
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+
+    private static final Watcher IGNORING_WATCHER = new Watcher() {
+        @Override
+        public void process(WatchedEvent event) {
+            // the watch only has to exist
+        }
+    };
+
+    private final ZooKeeperRule rule;
+    private final Map<LoadOperation, Integer> weights = Maps.newEnumMap(LoadOperation.class);
+
+    private int clients = 1;
+    private int threads = 1;
+    private int nodes = 1000;
+    private int dataSize = 100;
+    private long warmupNanos = 0;
+    private long durationNanos = TimeUnit.SECONDS.toNanos(10);
+
+    public ZooKeeperLoadDriver(ZooKeeperRule rule) {
+        Preconditions.checkArgument(rule != null);
+        this.rule = rule;
+    }
+
+    /**
+     * Sets the number of clients the threads share. Defaults to 1.
+     */
+    public ZooKeeperLoadDriver clients(int count) {
+        Preconditions.checkArgument(count > 0, "There must be at least one client");
+        this.clients = count;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads sending operations. Defaults to 1.
+     */
+    public ZooKeeperLoadDriver threads(int count) {
+        Preconditions.checkArgument(count > 0, "There must be at least one thread");
+        this.threads = count;
+        return this;
+    }
+
+    /**
+     * Sets the number of nodes the operations pick from. Fewer nodes means more contention.
+     * Defaults to 1000.
+     */
+    public ZooKeeperLoadDriver nodes(int count) {
+        Preconditions.checkArgument(count > 0, "There must be at least one node");
+        this.nodes = count;
+        return this;
+    }
+
+    /**
+     * Sets the size of the data written by creates and writes, in bytes. Defaults to 100.
+     */
+    public ZooKeeperLoadDriver dataSize(int bytes) {
+        Preconditions.checkArgument(bytes >= 0);
+        this.dataSize = bytes;
+        return this;
+    }
+
+    /**
+     * Adds an operation to the mix, picked in proportion to its weight. Defaults to only
+     * {@link LoadOperation#GET_DATA} if no operation is added.
+     */
+    public ZooKeeperLoadDriver operation(LoadOperation operation, int weight) {
+        Preconditions.checkArgument(weight > 0, "Weights must be positive");
+        weights.put(operation, weight);
+        return this;
+    }
+
+    /**
+     * Sets how long to send operations before measuring, so that the JIT and the server settle.
+     * Defaults to no warmup.
+     */
+    public ZooKeeperLoadDriver warmup(long warmup, TimeUnit unit) {
+        Preconditions.checkArgument(warmup >= 0);
+        this.warmupNanos = unit.toNanos(warmup);
+        return this;
+    }
+
+    /**
+     * Sets how long to measure for. Defaults to 10 seconds.
+     */
+    public ZooKeeperLoadDriver duration(long duration, TimeUnit unit) {
+        Preconditions.checkArgument(duration > 0);
+        this.durationNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * Creates the nodes, then sends operations for the warmup and the duration, and reports on
+     * those sent during the duration.
+     */
+    public ZooKeeperLoadReport run() {
+        if (weights.isEmpty()) {
+            weights.put(LoadOperation.GET_DATA, 1);
+        }
+
+        List<CuratorFramework> curatorClients = Lists.newArrayList();
+        for (int i = 0; i < clients; i++) {
+            curatorClients.add(rule.getConnectedClient(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        createNodes(curatorClients.get(0));
+
+        if (warmupNanos > 0) {
+            LOGGER.debug("Warming up for {} ms", TimeUnit.NANOSECONDS.toMillis(warmupNanos));
+            runWorkers(curatorClients, warmupNanos);
+        }
+
+        LOGGER.debug("Running {} for {} ms with {} threads and {} clients", weights,
+                TimeUnit.NANOSECONDS.toMillis(durationNanos), threads, clients);
+        return runWorkers(curatorClients, durationNanos);
+    }
+
+    private void createNodes(CuratorFramework client) {
+        byte[] data = new byte[dataSize];
+        try {
+            if (client.checkExists().forPath(ROOT) == null) {
+                client.create().forPath(ROOT);
+            }
+            for (int i = 0; i < nodes; i++) {
+                try {
+                    client.create().forPath(getPath(i), data);
+                } catch (KeeperException.NodeExistsException e) {
+                    // left over from an earlier run
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ZooKeeperLoadReport runWorkers(List<CuratorFramework> curatorClients, long runNanos) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("zookeeper-load-%d")
+                .build());
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Worker>> workers = Lists.newArrayList();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(new Worker(curatorClients.get(i % clients), start, runNanos)));
+            }
+
+            long startNanos = System.nanoTime();
+            start.countDown();
+
+            Map<LoadOperation, LatencyHistogram> latencies = Maps.newEnumMap(LoadOperation.class);
+            Map<LoadOperation, Long> conflicts = Maps.newEnumMap(LoadOperation.class);
+            Map<LoadOperation, Long> errors = Maps.newEnumMap(LoadOperation.class);
+            for (LoadOperation operation : weights.keySet()) {
+                latencies.put(operation, new LatencyHistogram());
+                conflicts.put(operation, 0L);
+                errors.put(operation, 0L);
+            }
+
+            for (Future<Worker> future : workers) {
+                Worker worker = future.get();
+                for (LoadOperation operation : weights.keySet()) {
+                    latencies.get(operation).add(worker.latencies.get(operation));
+                    conflicts.put(operation, conflicts.get(operation) + worker.conflicts.get(operation));
+                    errors.put(operation, errors.get(operation) + worker.errors.get(operation));
+                }
+            }
+            return new ZooKeeperLoadReport(System.nanoTime() - startNanos, latencies, conflicts, errors);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String getPath(int node) {
+        return ROOT + "/" + node;
+    }
+
+    /**
+     * Sends operations from one thread, recording their latencies in histograms of its own so that
+     * threads don't contend on them.
+     */
+    private final class Worker implements Callable<Worker> {
+        private final CuratorFramework client;
+        private final CountDownLatch start;
+        private final long runNanos;
+        private final byte[] data = new byte[dataSize];
+        private final LoadOperation[] operations = LoadOperation.values();
+        private final int[] cumulativeWeights = new int[operations.length];
+        private final Map<LoadOperation, LatencyHistogram> latencies = Maps.newEnumMap(LoadOperation.class);
+        private final Map<LoadOperation, Long> conflicts = Maps.newEnumMap(LoadOperation.class);
+        private final Map<LoadOperation, Long> errors = Maps.newEnumMap(LoadOperation.class);
+
+        private Worker(CuratorFramework client, CountDownLatch start, long runNanos) {
+            this.client = client;
+            this.start = start;
+            this.runNanos = runNanos;
+
+            int totalWeight = 0;
+            for (int i = 0; i < operations.length; i++) {
+                Integer weight = weights.get(operations[i]);
+                totalWeight += weight == null ? 0 : weight;
+                cumulativeWeights[i] = totalWeight;
+            }
+            for (LoadOperation operation : weights.keySet()) {
+                latencies.put(operation, new LatencyHistogram());
+                conflicts.put(operation, 0L);
+                errors.put(operation, 0L);
+            }
+        }
+
+        @Override
+        public Worker call() throws InterruptedException {
+            start.await();
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long deadlineNanos = System.nanoTime() + runNanos;
+            long now;
+            while ((now = System.nanoTime()) - deadlineNanos < 0) {
+                LoadOperation operation = pickOperation(random.nextInt(cumulativeWeights[operations.length - 1]));
+                String path = getPath(random.nextInt(nodes));
+                try {
+                    send(operation, path);
+                    latencies.get(operation).record(System.nanoTime() - now);
+                } catch (KeeperException.NoNodeException | KeeperException.NodeExistsException e) {
+                    conflicts.put(operation, conflicts.get(operation) + 1);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    LOGGER.debug("{} of {} failed", operation, path, e);
+                    errors.put(operation, errors.get(operation) + 1);
+                }
+            }
+            return this;
+        }
+
+        private LoadOperation pickOperation(int value) {
+            for (int i = 0; i < operations.length; i++) {
+                if (value < cumulativeWeights[i]) {
+                    return operations[i];
+                }
+            }
+            throw new IllegalStateException();
+        }
+
+        private void send(LoadOperation operation, String path) throws Exception {
+            switch (operation) {
+                case CREATE:
+                    client.create().forPath(path, data);
+                    break;
+                case GET_DATA:
+                    client.getData().forPath(path);
+                    break;
+                case SET_DATA:
+                    client.setData().forPath(path, data);
+                    break;
+                case DELETE:
+                    client.delete().forPath(path);
+                    break;
+                case WATCH:
+                    client.checkExists().usingWatcher(IGNORING_WATCHER).forPath(path);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation " + operation);
+            }
+        }
+    }
+
+    /**
+     * Runs the driver against a {@link LocalZooKeeperRule} on port 0 and prints the report. Takes
+     * {@code name=value} arguments, all of them optional:
+     * <ul>
+     * <li>{@code clients}, {@code threads}, {@code nodes} and {@code dataSize}, see the methods of the
+     * same name</li>
+     * <li>{@code warmup} and {@code duration}, in seconds</li>
+     * <li>{@code operations}, the mix as {@code OPERATION:weight} pairs, such as
+     * {@code GET_DATA:8,SET_DATA:2}</li>
+     * <li>{@code config}, either {@code default} for a {@link DefaultZooKeeperRuleConfig}, which is
+     * the default, or {@code in-memory} for an {@link InMemoryZooKeeperRuleConfig}</li>
+     * <li>{@code cnxnFactory}, either {@code nio} or {@code netty}, and {@code workerThreads} for
+     * Netty, see {@link CnxnFactoryOptions}</li>
+     * </ul>
+     *
+     * @throws IllegalArgumentException if an argument is unknown or has an unknown value
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = Maps.newHashMap();
+        for (String arg : args) {
+            List<String> option = Splitter.on('=').limit(2).trimResults().splitToList(arg);
+            Preconditions.checkArgument(option.size() == 2, "Arguments must be name=value pairs, not %s", arg);
+            options.put(option.get(0), option.get(1));
+        }
+
+        ZooKeeperRuleConfig config = getConfig(options.remove("config"), getCnxnFactoryOptions(options));
+        LocalZooKeeperRule rule = new LocalZooKeeperRule(ZooKeeperRule.generateRandomNamespace(), 0, config);
+
+        ZooKeeperLoadDriver driver = new ZooKeeperLoadDriver(rule);
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            driver.setOption(option.getKey(), option.getValue());
+        }
+
+        rule.before();
+        try {
+            System.out.print(driver.run().getSummary());
+        } finally {
+            rule.after();
+        }
+    }
+
+    private static ZooKeeperRuleConfig getConfig(@CheckForNull String name, CnxnFactoryOptions cnxnFactoryOptions) {
+        if (name == null || name.equals("default")) {
+            return DefaultZooKeeperRuleConfig.builder().cleanupOnExit(true).cnxnFactory(cnxnFactoryOptions).build();
+        } else if (name.equals("in-memory")) {
+            return new InMemoryZooKeeperRuleConfig(cnxnFactoryOptions);
+        }
+        throw new IllegalArgumentException("Unknown config '" + name + "'");
+    }
+
+    private static CnxnFactoryOptions getCnxnFactoryOptions(Map<String, String> options) {
+        String cnxnFactory = options.remove("cnxnFactory");
+        String workerThreads = options.remove("workerThreads");
+
+        CnxnFactoryOptions cnxnFactoryOptions;
+        if (cnxnFactory == null) {
+            cnxnFactoryOptions = CnxnFactoryOptions.systemDefault();
+        } else if (cnxnFactory.equals("nio")) {
+            cnxnFactoryOptions = CnxnFactoryOptions.nio();
+        } else if (cnxnFactory.equals("netty")) {
+            cnxnFactoryOptions = CnxnFactoryOptions.netty();
+        } else {
+            throw new IllegalArgumentException("Unknown connection factory '" + cnxnFactory + "'");
+        }
+
+        if (workerThreads != null) {
+            cnxnFactoryOptions = cnxnFactoryOptions.withWorkerThreads(Integer.parseInt(workerThreads));
+        }
+        return cnxnFactoryOptions;
+    }
+
+    private void setOption(String name, String value) {
+        switch (name) {
+            case "clients":
+                clients(Integer.parseInt(value));
+                break;
+            case "threads":
+                threads(Integer.parseInt(value));
+                break;
+            case "nodes":
+                nodes(Integer.parseInt(value));
+                break;
+            case "dataSize":
+                dataSize(Integer.parseInt(value));
+                break;
+            case "warmup":
+                warmup(Long.parseLong(value), TimeUnit.SECONDS);
+                break;
+            case "duration":
+                duration(Long.parseLong(value), TimeUnit.SECONDS);
+                break;
+            case "operations":
+                for (Map.Entry<String, String> operation
+                        : Splitter.on(',').trimResults().withKeyValueSeparator(':').split(value).entrySet()) {
+                    operation(LoadOperation.valueOf(operation.getKey()), Integer.parseInt(operation.getValue()));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + name);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The results of a {@link ZooKeeperLoadDriver} run: throughput, and the latency distribution,
+ * conflict and error counts of each {@link LoadOperation}.
+ *
+ * @author juang
+ */
+public final class ZooKeeperLoadReport {
+
+    private static final double MEDIAN = 50;
+    private static final double P99 = 99;
+    private static final double P999 = 99.9;
+
+    private final long elapsedNanos;
+    private final Map<LoadOperation, LatencyHistogram> latencies;
+    private final Map<LoadOperation, Long> conflicts;
+    private final Map<LoadOperation, Long> errors;
+    private final LatencyHistogram allLatencies = new LatencyHistogram();
+
+    ZooKeeperLoadReport(long elapsedNanos, Map<LoadOperation, LatencyHistogram> latencies,
+            Map<LoadOperation, Long> conflicts, Map<LoadOperation, Long> errors) {
+        this.elapsedNanos = elapsedNanos;
+        this.latencies = latencies;
+        this.conflicts = conflicts;
+        this.errors = errors;
+
+        for (LatencyHistogram histogram : latencies.values()) {
+            allLatencies.add(histogram);
+        }
+    }
+
+    public long getElapsed(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the number of operations that completed per second, over all operations.
+     */
+    public double getThroughput() {
+        return allLatencies.getCount() / (elapsedNanos / 1e9);
+    }
+
+    public double getThroughput(LoadOperation operation) {
+        return getCount(operation) / (elapsedNanos / 1e9);
+    }
+
+    /**
+     * Returns the number of operations that succeeded, over all operations.
+     */
+    public long getCount() {
+        return allLatencies.getCount();
+    }
+
+    public long getCount(LoadOperation operation) {
+        return getLatencies(operation).getCount();
+    }
+
+    /**
+     * Returns the number of operations that found the node in the wrong state: creates of a node that
+     * already existed, and other operations on a node that didn't exist. Conflicts are not counted
+     * anywhere else.
+     */
+    public long getConflictCount(LoadOperation operation) {
+        Long count = conflicts.get(operation);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Returns the number of operations that failed for any other reason, for example because the
+     * client lost its connection. Failed operations are not counted anywhere else.
+     */
+    public long getErrorCount(LoadOperation operation) {
+        Long count = errors.get(operation);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Returns the given percentile of the latencies over all operations, accurate to within a few
+     * percent.
+     */
+    public long getPercentile(double percentile, TimeUnit unit) {
+        return allLatencies.getPercentile(percentile, unit);
+    }
+
+    public long getPercentile(LoadOperation operation, double percentile, TimeUnit unit) {
+        return getLatencies(operation).getPercentile(percentile, unit);
+    }
+
+    public long getMax(LoadOperation operation, TimeUnit unit) {
+        return getLatencies(operation).getMax(unit);
+    }
+
+    /**
+     * Returns a table with the count, throughput, conflicts, errors, and median, 99th, 99.9th
+     * percentile and maximum latency in milliseconds of every operation that was run.
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder(String.format("%-10s %10s %10s %10s %8s %10s %10s %10s %10s%n",
+                "operation", "count", "ops/s", "conflicts", "errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+
+        for (Map.Entry<LoadOperation, LatencyHistogram> operation : latencies.entrySet()) {
+            appendRow(summary, operation.getKey().toString(), operation.getValue(),
+                    getConflictCount(operation.getKey()), getErrorCount(operation.getKey()));
+        }
+
+        appendRow(summary, "ALL", allLatencies, sum(conflicts), sum(errors));
+        return summary.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getSummary();
+    }
+
+    private LatencyHistogram getLatencies(LoadOperation operation) {
+        LatencyHistogram histogram = latencies.get(operation);
+        Preconditions.checkArgument(histogram != null, "%s was not part of the load", operation);
+        return histogram;
+    }
+
+    private void appendRow(StringBuilder summary, String name, LatencyHistogram histogram, long conflictCount,
+            long errorCount) {
+        summary.append(String.format("%-10s %10d %10.0f %10d %8d %10.2f %10.2f %10.2f %10.2f%n",
+                name,
+                histogram.getCount(),
+                histogram.getCount() / (elapsedNanos / 1e9),
+                conflictCount,
+                errorCount,
+                toMillis(histogram.getPercentile(MEDIAN, TimeUnit.NANOSECONDS)),
+                toMillis(histogram.getPercentile(P99, TimeUnit.NANOSECONDS)),
+                toMillis(histogram.getPercentile(P999, TimeUnit.NANOSECONDS)),
+                toMillis(histogram.getMax(TimeUnit.NANOSECONDS))));
+    }
+
+    private static long sum(Map<LoadOperation, Long> counts) {
+        long sum = 0;
+        for (long count : counts.values()) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+}
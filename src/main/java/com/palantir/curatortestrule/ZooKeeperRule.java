@@ -16,23 +16,49 @@
 
 package com.palantir.curatortestrule;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.CheckForNull;
 
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.CuratorFrameworkFactory.Builder;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
 import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.DataTree;
 import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZKDatabase;
+import org.apache.zookeeper.server.ZooKeeperServer;
 import org.junit.rules.ExternalResource;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
 import org.junit.runners.model.Statement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * JUnit rule to create a zookeeper server and to create curator instances to connect to the
@@ -45,6 +71,9 @@ import com.google.common.collect.Lists;
  * A namespace is used so that in the case that multiple tests are using the same zookeeper server,
  * their operations on the server won't collide. If a namespace is not provided, then a random
  * namespace will be used, NOT the root namespace.
+ * <p>
+ * The duration of each step of the rule's lifecycle is reported to the
+ * {@link ZooKeeperRuleListener}s registered with {@link ZooKeeperRuleListeners}.
  *
  * @author juang
  */
@@ -53,15 +82,56 @@ public abstract class ZooKeeperRule extends ExternalResource {
     private static final Logger LOGGER = LoggerFactory.getLogger(ZooKeeperRule.class);
 
     /**
-     * The port to be used in the zero-argument constructor if the system property is not set.
+     * The retry policy of {@link #getClient()}. It is stateless, so all clients can share it.
+     */
+    static final RetryPolicy DEFAULT_RETRY_POLICY = new ExponentialBackoffRetry(1000, 3);
+
+    private static final int CLIENT_CLOSE_THREADS = 8;
+    private static final long CLIENT_CLOSE_TIMEOUT_SECONDS = 30;
+    private static final long PRECONNECT_TIMEOUT_SECONDS = 30;
+    private static final long POLL_INTERVAL_MILLIS = 1;
+    private static final long EXPIRE_SESSION_TIMEOUT_SECONDS = 30;
+    private static final long BULK_LOAD_CONNECT_TIMEOUT_SECONDS = 30;
+    private static final int DEFAULT_BULK_LOAD_IN_FLIGHT = 1000;
+
+    /**
+     * Closes clients in parallel, since each close waits for the server to close the session.
      */
-    private static final int DEFAULT_PORT = 9500;
-    private static final String PORT_SYSTEM_PROPERTY_NAME = "zookeeper.test.port";
+    private static final ThreadPoolExecutor CLIENT_CLOSE_EXECUTOR = newClientCloseExecutor();
 
     private final List<CuratorFramework> curatorClients = Lists.newCopyOnWriteArrayList();
+    private final Queue<CuratorFramework> preconnectedClients = new ConcurrentLinkedQueue<>();
+
+    @CheckForNull
+    private volatile CuratorFramework resetClient;
+
+    @CheckForNull
+    private File snapshot;
 
+    private volatile Description description = Description.EMPTY;
+
+    private volatile boolean skipSessionClose = false;
+    private volatile int preconnectedClientCount = 0;
+    private volatile boolean faultsInjected = false;
+
+    @CheckForNull
+    private volatile EventLatencyRecorder eventLatencyRecorder;
+
+    @CheckForNull
+    private String forkBaseNamespace;
+
+    /**
+     * The port the rule was created with. A {@link LocalZooKeeperRule} created with a
+     * {@link PortStrategy} has 0 here, and the port it actually bound to is that of
+     * {@link #getCnxnFactory()}.
+     */
     protected final int port;
     protected final String namespace;
+
+    /**
+     * The config the server is obtained from, or null for a rule that creates its servers itself.
+     */
+    @CheckForNull
     protected final ZooKeeperRuleConfig ruleConfig;
 
     public ZooKeeperRule() {
@@ -87,8 +157,59 @@ public abstract class ZooKeeperRule extends ExternalResource {
         this.ruleConfig = ruleConfig;
     }
 
+    /**
+     * Creates a zookeeper rule that creates its servers itself in {@link #startServer()}, rather than
+     * getting them from a {@link ZooKeeperRuleConfig}.
+     */
+    protected ZooKeeperRule(String namespace) {
+        Preconditions.checkArgument(namespace != null);
+
+        LOGGER.debug("Creating ZooKeeperRule with namespace: {}", namespace);
+
+        this.port = 0;
+        this.namespace = namespace;
+        this.ruleConfig = null;
+    }
+
+    /**
+     * Returns a client as described in {@link #getClient(RetryPolicy)}, with a default retry policy.
+     * Clients connected in advance by {@link #preconnectClients(int)} are handed out first.
+     */
     public CuratorFramework getClient() {
-        return getClient(new ExponentialBackoffRetry(1000, 3));
+        CuratorFramework client = preconnectedClients.poll();
+        if (client != null) {
+            return client;
+        }
+        return getClient(DEFAULT_RETRY_POLICY);
+    }
+
+    public CuratorFramework getConnectedClient(long timeout, TimeUnit unit) {
+        return getConnectedClient(DEFAULT_RETRY_POLICY, timeout, unit);
+    }
+
+    /**
+     * Returns a client as described in {@link #getClient(RetryPolicy)} once it is connected, so that
+     * its first operation doesn't have to wait for the connection.
+     *
+     * @throws IllegalStateException if the client did not connect within the timeout, in which case
+     *         it is closed
+     */
+    public CuratorFramework getConnectedClient(RetryPolicy retryPolicy, long timeout, TimeUnit unit) {
+        CuratorFramework client = getClient(retryPolicy);
+        awaitConnected(client, timeout, unit);
+        return client;
+    }
+
+    /**
+     * Makes {@link #before()} start the given number of clients and wait for them to connect, so that
+     * the first calls to {@link #getClient()} return connected clients and tests don't pay for the
+     * connection setup. Returns this rule.
+     */
+    public ZooKeeperRule preconnectClients(int count) {
+        Preconditions.checkArgument(count >= 0);
+
+        this.preconnectedClientCount = count;
+        return this;
     }
 
     /**
@@ -97,50 +218,657 @@ public abstract class ZooKeeperRule extends ExternalResource {
      * started, and will be closed automatically.
      */
     public CuratorFramework getClient(RetryPolicy retryPolicy) {
+        long startNanos = System.nanoTime();
+
         CuratorFrameworkFactory.Builder builder = CuratorFrameworkFactory.builder();
-        builder = builder.connectString("127.0.0.1:" + getCnxnFactory().getLocalPort());
+        builder = builder.connectString(getConnectString());
         builder = builder.retryPolicy(retryPolicy);
         builder = builder.namespace(this.namespace);
 
         CuratorFramework client = builder.build();
 
+        if (!ZooKeeperRuleListeners.isEmpty()) {
+            client.getConnectionStateListenable().addListener(new ConnectTimer(startNanos));
+        }
+
+        EventLatencyRecorder recorder = eventLatencyRecorder;
+        if (recorder != null) {
+            recorder.attach(client);
+        }
+
         client.start();
 
         curatorClients.add(client);
 
+        recordPhase(ZooKeeperRulePhase.GET_CLIENT, startNanos);
         return client;
     }
 
+    /**
+     * Makes the given recorder listen to the watch events and connection state of every client
+     * returned by {@link #getClient(RetryPolicy)} from now on, including the clients connected in
+     * advance by {@link #preconnectClients(int)}. Returns this rule.
+     * <p>
+     * A {@link SharedZooKeeperRule} with pooled clients hands out clients of its own instead of
+     * views of the pooled client, so that the recorder only hears from this rule's clients.
+     */
+    public ZooKeeperRule withEventLatencyRecorder(EventLatencyRecorder recorder) {
+        Preconditions.checkArgument(recorder != null);
+
+        this.eventLatencyRecorder = recorder;
+        return this;
+    }
+
+    boolean hasEventLatencyRecorder() {
+        return eventLatencyRecorder != null;
+    }
+
+    /**
+     * Deletes every node under this rule's namespace, so that the server can be reused with a clean
+     * slate without restarting it. Nodes belonging to other namespaces on a shared server are left
+     * alone.
+     */
+    public void reset() {
+        if (forkBaseNamespace != null) {
+            discardFork();
+            fork();
+            return;
+        }
+
+        CuratorFramework client = resetClient;
+        if (client == null) {
+            // not getClient(), which would take one of the preconnected clients meant for the test
+            client = getClient(DEFAULT_RETRY_POLICY);
+            resetClient = client;
+        }
+
+        try {
+            ZNodes.deleteChildren(client, "/");
+        } catch (Exception e) {
+            Throwables.propagateIfPossible(e);
+            throw new RuntimeException("Could not reset namespace " + namespace, e);
+        }
+    }
+
+    /**
+     * Loads the given snapshot into this rule's namespace as soon as the server is started, before
+     * any client can connect. Returns this rule.
+     *
+     * @see #captureSnapshot(File)
+     */
+    public ZooKeeperRule withSnapshot(File snapshotFile) {
+        Preconditions.checkArgument(snapshotFile != null);
+
+        this.snapshot = snapshotFile;
+        return this;
+    }
+
+    /**
+     * Makes this rule drop its clients' connections in {@link #after()} without closing their
+     * sessions first, if the server is shut down right afterwards anyway. This saves a round trip
+     * and a transaction per client, which adds up for tests with many clients. Returns this rule.
+     * <p>
+     * Rules whose server outlives them, such as a {@link SharedZooKeeperRule}, always close the
+     * sessions, so that ephemeral nodes don't outlive the rule.
+     */
+    public ZooKeeperRule skipSessionClose() {
+        this.skipSessionClose = true;
+        return this;
+    }
+
+    /**
+     * Makes {@link #before()} create this rule's namespace as a copy-on-write fork of the given
+     * namespace on the same server, which was seeded beforehand, for example by a
+     * {@code @ClassRule} with {@link #bulkLoad(Iterable)}. Returns this rule.
+     * <p>
+     * Forking takes constant time however large the base tree is: nodes are only copied into the
+     * fork when the test first reads or writes them, and writes never reach the base. The fork is
+     * discarded in {@link #after()}, and {@link #reset()} discards and forks it again, both in time
+     * proportional to the nodes the test touched. The base must not change while it has forks.
+     * <p>
+     * Needs a server in this JVM from a config with forkable namespaces, see
+     * {@link DefaultZooKeeperRuleConfig.Builder#forkableNamespaces()} and
+     * {@link InMemoryZooKeeperRuleConfig#withForkableNamespaces()}, such as that of a
+     * {@link SharedZooKeeperRule} on the same port as the base.
+     */
+    public ZooKeeperRule withFork(String baseNamespace) {
+        Preconditions.checkArgument(baseNamespace != null);
+        Preconditions.checkArgument(!baseNamespace.equals(namespace), "A namespace can't be forked from itself");
+
+        this.forkBaseNamespace = baseNamespace;
+        return this;
+    }
+
+    /**
+     * Writes every persistent node under this rule's namespace to the given file. Paths are stored
+     * relative to the namespace, so the snapshot can be loaded into a rule with any namespace.
+     * <p>
+     * Large fixtures can be seeded once, captured, and then loaded by later rules with
+     * {@link #withSnapshot(File)} or {@link #loadSnapshot(File)}, which writes the nodes straight
+     * into the server's data tree instead of making a request per node.
+     */
+    public void captureSnapshot(File snapshotFile) {
+        DataTree dataTree = ZooKeeperServers.getServer(getCnxnFactory()).getZKDatabase().getDataTree();
+        try {
+            int count = NamespaceSnapshots.write(dataTree, "/" + namespace, snapshotFile);
+            LOGGER.debug("Captured {} nodes of namespace {} to {}", count, namespace, snapshotFile);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates the nodes stored in a snapshot captured by {@link #captureSnapshot(File)} under this
+     * rule's namespace. The nodes must not already exist.
+     */
+    public void loadSnapshot(File snapshotFile) {
+        ZooKeeperServer zkServer = ZooKeeperServers.getServer(getCnxnFactory());
+        ZKDatabase zkDatabase = zkServer.getZKDatabase();
+        try {
+            int count = NamespaceSnapshots.read(snapshotFile, zkDatabase.getDataTree(), "/" + namespace,
+                    zkDatabase.getDataTreeLastProcessedZxid());
+            LOGGER.debug("Loaded {} nodes from {} into namespace {}", count, snapshotFile, namespace);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates the given nodes under this rule's namespace through a single connection, sending up
+     * to {@value #DEFAULT_BULK_LOAD_IN_FLIGHT} creates before waiting for their responses. This
+     * creates millions of nodes in the time it takes to create thousands one at a time, while going
+     * through the server's request pipeline and transaction log just like any client.
+     * <p>
+     * Parents must be listed before their children. The nodes are read lazily, so they can be
+     * generated on the fly.
+     *
+     * @throws RuntimeException wrapping a {@link KeeperException} if a node could not be created, for
+     *         example because it already exists or its parent doesn't. The nodes listed before it
+     *         may or may not have been created. Whatever the failure, including one thrown by the
+     *         iterator, the creates already sent have completed when this returns.
+     */
+    public BulkLoadResult bulkLoad(Iterable<ZNode> nodes) {
+        return bulkLoad(nodes, DEFAULT_BULK_LOAD_IN_FLIGHT);
+    }
+
+    /**
+     * Like {@link #bulkLoad(Iterable)}, with the given number of creates awaiting a response at a
+     * time.
+     */
+    public BulkLoadResult bulkLoad(Iterable<ZNode> nodes, int maxInFlight) {
+        Preconditions.checkArgument(maxInFlight > 0, "At least one create must be in flight");
+
+        try {
+            BulkLoadResult result = BulkLoader.load(getBulkLoadZooKeeper(), "/" + namespace, nodes.iterator(),
+                    maxInFlight);
+            LOGGER.debug("Bulk loaded {} into namespace {}", result, namespace);
+            return result;
+        } catch (KeeperException e) {
+            throw new RuntimeException("Bulk load into namespace " + namespace + " failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Like {@link #bulkLoad(Iterable)}, with the nodes streamed from a text file with a path per
+     * line, optionally followed by a tab and the node's data as UTF-8.
+     */
+    public BulkLoadResult bulkLoad(File file) {
+        try {
+            BulkLoadResult result = BulkLoader.load(getBulkLoadZooKeeper(), "/" + namespace, file,
+                    DEFAULT_BULK_LOAD_IN_FLIGHT);
+            LOGGER.debug("Bulk loaded {} from {} into namespace {}", result, file, namespace);
+            return result;
+        } catch (KeeperException | IOException e) {
+            throw new RuntimeException("Bulk load from " + file + " into namespace " + namespace + " failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the connection of a new client, which is closed with the rule, once the client has
+     * created the namespace node.
+     */
+    private ZooKeeper getBulkLoadZooKeeper() {
+        CuratorFramework client = getConnectedClient(BULK_LOAD_CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        try {
+            client.checkExists().forPath("/");
+            return client.getZookeeperClient().getZooKeeper();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the server's statistics, such as its request latencies and the number
+     * of nodes and watches. For a server shared with other rules, they include the other rules'
+     * requests.
+     */
+    public ZooKeeperServerStats getServerStats() {
+        return ZooKeeperServerStats.of(ZooKeeperServers.getServer(getCnxnFactory()));
+    }
+
+    /**
+     * Returns how many requests of each operation, such as "create" or "getData", the server has
+     * received for this rule's namespace, so that tests can check how many requests a code path
+     * sends. Operations without a path, such as heartbeats, are not counted. Needs a server created
+     * by one of the configs of this package.
+     */
+    public Map<String, Long> getRequestCounts() {
+        return getNoJMXServer().getRequestCounters().getCounts(namespace);
+    }
+
+    /**
+     * Resets the request counts and latencies of {@link #getServerStats()} and
+     * {@link #getRequestCounts()}, for every namespace of the server.
+     */
+    public void resetServerStats() {
+        ZooKeeperServer zkServer = ZooKeeperServers.getServer(getCnxnFactory());
+        zkServer.serverStats().reset();
+        if (zkServer instanceof NoJMXZooKeeperServer) {
+            ((NoJMXZooKeeperServer) zkServer).getRequestCounters().reset();
+        }
+    }
+
+    /**
+     * Expires the client's current session on the server, as if the client had not been heard from
+     * for longer than the session timeout, and returns once the server has closed the session. The
+     * client is told that its session expired when it reconnects, which it does right away.
+     */
+    public void expireSession(CuratorFramework client) {
+        long sessionId;
+        try {
+            sessionId = client.getZookeeperClient().getZooKeeper().getSessionId();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        Preconditions.checkState(sessionId != 0, "The client has not established a session yet");
+
+        ZooKeeperServer zkServer = ZooKeeperServers.getServer(getCnxnFactory());
+        zkServer.closeSession(sessionId);
+
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(EXPIRE_SESSION_TIMEOUT_SECONDS);
+        while (zkServer.getZKDatabase().getSessionWithTimeOuts().containsKey(sessionId)) {
+            if (System.nanoTime() - deadlineNanos > 0) {
+                throw new IllegalStateException("The server did not close session 0x" + Long.toHexString(sessionId)
+                        + " within " + EXPIRE_SESSION_TIMEOUT_SECONDS + " " + TimeUnit.SECONDS);
+            }
+            Uninterruptibles.sleepUninterruptibly(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        LOGGER.debug("Expired session 0x{}", Long.toHexString(sessionId));
+    }
+
+    /**
+     * Closes every client connection to the server. The clients reconnect right away and keep their
+     * sessions, so they only see a disconnect.
+     */
+    public void dropConnections() {
+        getCnxnFactory().closeAll();
+    }
+
+    /**
+     * Closes every client connection to the server and refuses new connections for the given
+     * duration, as if the clients had been cut off from the server by the network. Sessions outlive
+     * the partition if it is shorter than their timeout, and are expired otherwise. Returns right
+     * away.
+     */
+    public void partition(long duration, TimeUnit unit) {
+        getFaultInjectingServer().refuseConnections(duration, unit);
+        getCnxnFactory().closeAll();
+    }
+
+    /**
+     * Holds every request the server receives from now on until the given duration has passed,
+     * while keeping the connections open. Clients whose requests, including their heartbeats, go
+     * unanswered for long enough disconnect. Returns right away.
+     */
+    public void stallRequests(long duration, TimeUnit unit) {
+        getFaultInjectingServer().stallRequests(duration, unit);
+    }
+
+    /**
+     * Delays every request the server receives from now on by the given latency, or stops delaying
+     * them if it is 0. Requests are still processed in the order they arrived.
+     */
+    public void setRequestLatency(long latency, TimeUnit unit) {
+        Preconditions.checkArgument(latency >= 0, "Latency must not be negative");
+        getFaultInjectingServer().setRequestLatency(latency, unit);
+    }
+
+    /**
+     * Stops the faults injected by {@link #partition(long, TimeUnit)},
+     * {@link #stallRequests(long, TimeUnit)} and {@link #setRequestLatency(long, TimeUnit)}, and
+     * processes the requests that are still held right away. This is done by {@link #after()} as
+     * well.
+     */
+    public void clearFaults() {
+        getFaultInjectingServer().clearFaults();
+        faultsInjected = false;
+    }
+
+    /**
+     * Faults are injected by the {@link NoJMXZooKeeperServer} used by the configs of this package.
+     * They affect every client of the server, including those of other rules sharing it.
+     */
+    private NoJMXZooKeeperServer getFaultInjectingServer() {
+        NoJMXZooKeeperServer zkServer = getNoJMXServer();
+        faultsInjected = true;
+        return zkServer;
+    }
+
+    private NoJMXZooKeeperServer getNoJMXServer() {
+        ZooKeeperServer zkServer = ZooKeeperServers.getServer(getCnxnFactory());
+        if (!(zkServer instanceof NoJMXZooKeeperServer)) {
+            throw new UnsupportedOperationException("Not supported by a " + zkServer.getClass().getName());
+        }
+        return (NoJMXZooKeeperServer) zkServer;
+    }
+
+    private void fork() {
+        ZKDatabase zkDatabase = ZooKeeperServers.getServer(getCnxnFactory()).getZKDatabase();
+        try {
+            getCopyOnWriteDataTree(zkDatabase).fork("/" + forkBaseNamespace, "/" + namespace,
+                    zkDatabase.getDataTreeLastProcessedZxid());
+        } catch (KeeperException e) {
+            throw new IllegalStateException("Could not fork namespace " + forkBaseNamespace + " into " + namespace, e);
+        }
+        LOGGER.debug("Forked namespace {} into {}", forkBaseNamespace, namespace);
+    }
+
+    private void discardFork() {
+        ZKDatabase zkDatabase = ZooKeeperServers.getServer(getCnxnFactory()).getZKDatabase();
+        if (!(zkDatabase.getDataTree() instanceof CopyOnWriteDataTree)
+                || !getCopyOnWriteDataTree(zkDatabase).isFork("/" + namespace)) {
+            // before() failed to fork
+            return;
+        }
+        CopyOnWriteDataTree dataTree = getCopyOnWriteDataTree(zkDatabase);
+
+        try {
+            dataTree.discard("/" + namespace, zkDatabase.getDataTreeLastProcessedZxid());
+        } catch (KeeperException e) {
+            throw new IllegalStateException("Could not discard fork " + namespace, e);
+        }
+    }
+
+    private static CopyOnWriteDataTree getCopyOnWriteDataTree(ZKDatabase zkDatabase) {
+        DataTree dataTree = zkDatabase.getDataTree();
+        Preconditions.checkState(dataTree instanceof CopyOnWriteDataTree,
+                "Forks need a server from a config with forkable namespaces");
+        return (CopyOnWriteDataTree) dataTree;
+    }
+
+    /**
+     * Returns a rule that calls {@link #reset()} before each test. This lets a rule used as a
+     * {@code @ClassRule} serve every test method with a fresh namespace:
+     *
+     * <pre>
+     * &#64;ClassRule
+     * public static final ZooKeeperRule ZOOKEEPER = new SharedZooKeeperRule();
+     *
+     * &#64;Rule
+     * public final TestRule reset = ZOOKEEPER.resetBeforeEachTest();
+     * </pre>
+     */
+    public TestRule resetBeforeEachTest() {
+        return new ExternalResource() {
+            @Override
+            protected void before() {
+                reset();
+            }
+        };
+    }
+
+    @Override
+    public Statement apply(Statement base, Description testDescription) {
+        this.description = testDescription;
+        return super.apply(base, testDescription);
+    }
+
     protected abstract ServerCnxnFactory getCnxnFactory();
 
+    /**
+     * Returns the connect string used by the clients returned from {@link #getClient(RetryPolicy)}.
+     */
+    protected String getConnectString() {
+        return "127.0.0.1:" + getCnxnFactory().getLocalPort();
+    }
+
     @Override
     protected void before() {
+        long startNanos = System.nanoTime();
+
+        startServer();
+        recordPhase(ZooKeeperRulePhase.START_SERVER, startNanos);
+
+        if (snapshot != null) {
+            loadSnapshot(snapshot);
+        }
+
+        if (forkBaseNamespace != null) {
+            fork();
+        }
+
+        if (preconnectedClientCount > 0) {
+            preconnectClients();
+        }
+
+        recordPhase(ZooKeeperRulePhase.BEFORE, startNanos);
+    }
+
+    /**
+     * Starts the server at the beginning of {@link #before()}. Does nothing by default, for
+     * subclasses that start their server in an override of {@link #before()} instead.
+     */
+    protected void startServer() {
         // do nothing
     }
 
     @Override
     protected void after() {
+        long startNanos = System.nanoTime();
+
+        if (faultsInjected) {
+            clearFaults();
+        }
+
         closeClients();
+        if (forkBaseNamespace != null) {
+            discardFork();
+        }
+        long closeServerStartNanos = System.nanoTime();
+        recordPhase(ZooKeeperRulePhase.CLOSE_CLIENTS, startNanos);
+
         closeServer();
-        ruleConfig.cleanup();
+        long cleanupStartNanos = System.nanoTime();
+        recordPhase(ZooKeeperRulePhase.CLOSE_SERVER, closeServerStartNanos);
+
+        cleanup();
+        recordPhase(ZooKeeperRulePhase.CLEANUP, cleanupStartNanos);
+
+        recordPhase(ZooKeeperRulePhase.AFTER, startNanos);
     }
 
+    /**
+     * Closes the clients handed out by this rule in parallel, giving up on the ones that take longer
+     * than {@value #CLIENT_CLOSE_TIMEOUT_SECONDS} seconds in total.
+     */
     protected void closeClients() {
-        LOGGER.debug("Closing {} curator clients", curatorClients.size());
-        for (CuratorFramework client : curatorClients) {
+        resetClient = null;
+        preconnectedClients.clear();
+
+        List<CuratorFramework> clients = Lists.newArrayList(curatorClients);
+        curatorClients.removeAll(clients);
+
+        List<CuratorFramework> startedClients = Lists.newArrayList();
+        for (CuratorFramework client : clients) {
             if (client.getState() == CuratorFrameworkState.STARTED) {
-                client.close();
+                startedClients.add(client);
+            }
+        }
+
+        LOGGER.debug("Closing {} curator clients", startedClients.size());
+        if (skipSessionClose && isServerShutDownAfterClients()) {
+            for (CuratorFramework client : startedClients) {
+                disconnect(client);
+            }
+        }
+
+        if (startedClients.size() == 1) {
+            startedClients.get(0).close();
+            return;
+        }
+
+        List<Future<?>> closes = Lists.newArrayList();
+        for (final CuratorFramework client : startedClients) {
+            closes.add(CLIENT_CLOSE_EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    client.close();
+                }
+            }));
+        }
+
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(CLIENT_CLOSE_TIMEOUT_SECONDS);
+        for (Future<?> close : closes) {
+            try {
+                close.get(Math.max(deadlineNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                LOGGER.warn("Timed out closing curator clients after {} seconds", CLIENT_CLOSE_TIMEOUT_SECONDS);
+                return;
+            } catch (ExecutionException e) {
+                LOGGER.warn("Failed to close curator client", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             }
         }
     }
 
+    /**
+     * Returns whether {@link #closeServer()} shuts the server down, so that the sessions of this
+     * rule's clients don't have to be closed before it. Subclasses that may keep the server running
+     * should return false.
+     */
+    protected boolean isServerShutDownAfterClients() {
+        return true;
+    }
+
     protected abstract void closeServer();
 
+    protected void cleanup() {
+        if (ruleConfig != null) {
+            ruleConfig.cleanup();
+        }
+    }
+
+    /**
+     * Reports that this rule completed a phase that started at the given {@link System#nanoTime()}.
+     */
+    void recordPhase(ZooKeeperRulePhase phase, long startNanos) {
+        if (!ZooKeeperRuleListeners.isEmpty()) {
+            ZooKeeperRuleListeners.phaseCompleted(this, description, phase, System.nanoTime() - startNanos);
+        }
+    }
+
+    private void preconnectClients() {
+        // connect the clients at the same time rather than one after another
+        List<CuratorFramework> clients = Lists.newArrayList();
+        for (int i = 0; i < preconnectedClientCount; i++) {
+            clients.add(getClient(DEFAULT_RETRY_POLICY));
+        }
+
+        for (CuratorFramework client : clients) {
+            awaitConnected(client, PRECONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        preconnectedClients.addAll(clients);
+    }
+
+    private void awaitConnected(CuratorFramework client, long timeout, TimeUnit unit) {
+        long startNanos = System.nanoTime();
+        long timeoutNanos = unit.toNanos(timeout);
+
+        boolean connected;
+        try {
+            connected = client.blockUntilConnected(Ints.saturatedCast(unit.toMillis(timeout)), TimeUnit.MILLISECONDS);
+
+            // Curator tells its listeners about the connection before its retry loop sees it, and an
+            // operation that starts in between waits a full second for an event that already happened
+            while (connected && !client.getZookeeperClient().isConnected()) {
+                connected = System.nanoTime() - startNanos < timeoutNanos;
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        if (!connected) {
+            // pooled clients are shared, and only closed along with their server
+            if (curatorClients.remove(client)) {
+                client.close();
+            }
+            throw new IllegalStateException("Could not connect to ZooKeeper at " + getConnectString()
+                    + " within " + timeout + " " + unit);
+        }
+
+        LOGGER.debug("Curator client connected to {} after {} us", getConnectString(),
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    private static void disconnect(CuratorFramework client) {
+        try {
+            CuratorClients.disconnect(client);
+        } catch (Exception e) {
+            LOGGER.debug("Could not disconnect curator client, its session will be closed instead", e);
+        }
+    }
+
+    private static ThreadPoolExecutor newClientCloseExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(CLIENT_CLOSE_THREADS, CLIENT_CLOSE_THREADS,
+                1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("zookeeper-rule-client-close-%d")
+                        .build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     public static String generateRandomNamespace() {
         return UUID.randomUUID().toString();
     }
 
+    /**
+     * Returns {@link PortStrategies#getDefaultPort()}.
+     */
     public static int getDefaultPort() {
-        return Integer.getInteger(PORT_SYSTEM_PROPERTY_NAME, DEFAULT_PORT);
+        return PortStrategies.getDefaultPort();
+    }
+
+    /**
+     * Reports how long a client took to connect for the first time.
+     */
+    private final class ConnectTimer implements ConnectionStateListener {
+        private final long startNanos;
+
+        private boolean connected = false;
+
+        private ConnectTimer(long startNanos) {
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            if (newState == ConnectionState.CONNECTED && !connected) {
+                connected = true;
+                recordPhase(ZooKeeperRulePhase.CONNECT_CLIENT, startNanos);
+            }
+        }
     }
 }
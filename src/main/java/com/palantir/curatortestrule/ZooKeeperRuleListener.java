@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import org.junit.runner.Description;
+
+/**
+ * Receives the duration of every {@link ZooKeeperRulePhase} that any {@link ZooKeeperRule} in the
+ * JVM goes through. Listeners are registered with {@link ZooKeeperRuleListeners#addListener}.
+ * <p>
+ * Listeners are called on the thread that completed the phase, which may be a client's event thread,
+ * so they must be thread safe and should return quickly.
+ *
+ * @author juang
+ */
+public interface ZooKeeperRuleListener {
+
+    /**
+     * Called when a rule completed a phase. Phases that fail with an exception are not reported.
+     *
+     * @param rule the rule that went through the phase
+     * @param description the test or test class that the rule was applied to, or
+     *        {@link Description#EMPTY} if the rule is not run by JUnit
+     */
+    void phaseCompleted(ZooKeeperRule rule, Description description, ZooKeeperRulePhase phase, long durationNanos);
+}
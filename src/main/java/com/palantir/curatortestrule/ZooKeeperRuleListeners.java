@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.util.List;
+
+import org.junit.runner.Description;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * The {@link ZooKeeperRuleListener}s that are told about the lifecycle of every
+ * {@link ZooKeeperRule}.
+ * <p>
+ * If the {@value #TIMINGS_SYSTEM_PROPERTY_NAME} system property is set to true, a
+ * {@link ZooKeeperRuleTimings} is registered and its summary is logged when the JVM exits, which shows
+ * how much of a test run is spent in the rules.
+ *
+ * @author juang
+ */
+public final class ZooKeeperRuleListeners {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ZooKeeperRuleListeners.class);
+
+    private static final String TIMINGS_SYSTEM_PROPERTY_NAME = "zookeeper.test.timings";
+
+    private static final List<ZooKeeperRuleListener> LISTENERS = Lists.newCopyOnWriteArrayList();
+
+    static {
+        if (Boolean.getBoolean(TIMINGS_SYSTEM_PROPERTY_NAME)) {
+            final ZooKeeperRuleTimings timings = new ZooKeeperRuleTimings();
+            addListener(timings);
+
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    LOGGER.info("Time spent in ZooKeeperRules:\n{}", timings.getSummary());
+                }
+            }, "zookeeper-rule-timings"));
+        }
+    }
+
+    private ZooKeeperRuleListeners() {
+        // utility class
+    }
+
+    public static void addListener(ZooKeeperRuleListener listener) {
+        Preconditions.checkArgument(listener != null);
+
+        LISTENERS.add(listener);
+    }
+
+    public static void removeListener(ZooKeeperRuleListener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    static boolean isEmpty() {
+        return LISTENERS.isEmpty();
+    }
+
+    static void phaseCompleted(ZooKeeperRule rule, Description description, ZooKeeperRulePhase phase,
+            long durationNanos) {
+        for (ZooKeeperRuleListener listener : LISTENERS) {
+            try {
+                listener.phaseCompleted(rule, description, phase, durationNanos);
+            } catch (RuntimeException e) {
+                LOGGER.warn("ZooKeeperRuleListener " + listener + " failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import org.apache.curator.framework.CuratorFramework;
+
+/**
+ * The steps of a {@link ZooKeeperRule}'s lifecycle that are timed and reported to
+ * {@link ZooKeeperRuleListener}s.
+ *
+ * @author juang
+ */
+public enum ZooKeeperRulePhase {
+    /**
+     * Everything the rule does before the statement runs, including starting the server.
+     */
+    BEFORE,
+
+    /**
+     * Starting the server, or attaching to a server that is already running.
+     */
+    START_SERVER,
+
+    /**
+     * {@link ZooKeeperRuleConfig#getServer(int)}, which is only called by rules that actually start a
+     * server.
+     */
+    GET_SERVER,
+
+    /**
+     * Creating and starting a client in {@link ZooKeeperRule#getClient()}. The client is not yet
+     * connected at this point.
+     */
+    GET_CLIENT,
+
+    /**
+     * The time from the start of {@link ZooKeeperRule#getClient()} until the client first connected,
+     * which includes creating its session. Reported from a {@link CuratorFramework} event thread.
+     */
+    CONNECT_CLIENT,
+
+    /**
+     * Everything the rule does after the statement ran.
+     */
+    AFTER,
+
+    /**
+     * Closing the clients handed out by the rule.
+     */
+    CLOSE_CLIENTS,
+
+    /**
+     * Shutting down the server, or releasing it if it is shared.
+     */
+    CLOSE_SERVER,
+
+    /**
+     * {@link ZooKeeperRuleConfig#cleanup()}.
+     */
+    CLEANUP;
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.runner.Description;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A {@link ZooKeeperRuleListener} that aggregates the durations of each {@link ZooKeeperRulePhase},
+ * both overall and per type of rule, so that for example the time spent starting servers for
+ * {@link LocalZooKeeperRule}s can be compared with {@link SharedZooKeeperRule}s.
+ *
+ * @author juang
+ */
+public final class ZooKeeperRuleTimings implements ZooKeeperRuleListener {
+
+    private static final double MEDIAN = 50;
+    private static final double P99 = 99;
+
+    private final Map<ZooKeeperRulePhase, LatencyHistogram> phases = newHistograms();
+    // sorted, so that the summary lists the rule types in a stable order
+    private final ConcurrentMap<String, Map<ZooKeeperRulePhase, LatencyHistogram>> phasesByRuleType =
+            new ConcurrentSkipListMap<>();
+
+    @Override
+    public void phaseCompleted(ZooKeeperRule rule, Description description, ZooKeeperRulePhase phase,
+            long durationNanos) {
+        phases.get(phase).record(durationNanos);
+        getPhasesOfRuleType(rule.getClass().getSimpleName()).get(phase).record(durationNanos);
+    }
+
+    public long getCount(ZooKeeperRulePhase phase) {
+        return phases.get(phase).getCount();
+    }
+
+    public long getTotal(ZooKeeperRulePhase phase, TimeUnit unit) {
+        return phases.get(phase).getTotal(unit);
+    }
+
+    /**
+     * Returns the given percentile of the durations of a phase, accurate to within a few percent.
+     */
+    public long getPercentile(ZooKeeperRulePhase phase, double percentile, TimeUnit unit) {
+        return phases.get(phase).getPercentile(percentile, unit);
+    }
+
+    /**
+     * Returns a table with the count, total, median, 99th percentile and maximum duration in
+     * milliseconds of every phase that occurred, per type of rule.
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder(String.format("%-20s %-15s %8s %12s %10s %10s %10s%n",
+                "rule", "phase", "count", "total ms", "p50 ms", "p99 ms", "max ms"));
+
+        for (Map.Entry<String, Map<ZooKeeperRulePhase, LatencyHistogram>> ruleType : phasesByRuleType.entrySet()) {
+            for (Map.Entry<ZooKeeperRulePhase, LatencyHistogram> phase : ruleType.getValue().entrySet()) {
+                LatencyHistogram histogram = phase.getValue();
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+
+                summary.append(String.format("%-20s %-15s %8d %12.1f %10.1f %10.1f %10.1f%n",
+                        ruleType.getKey(),
+                        phase.getKey(),
+                        histogram.getCount(),
+                        toMillis(histogram.getTotal(TimeUnit.NANOSECONDS)),
+                        toMillis(histogram.getPercentile(MEDIAN, TimeUnit.NANOSECONDS)),
+                        toMillis(histogram.getPercentile(P99, TimeUnit.NANOSECONDS)),
+                        toMillis(histogram.getMax(TimeUnit.NANOSECONDS))));
+            }
+        }
+        return summary.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getSummary();
+    }
+
+    private Map<ZooKeeperRulePhase, LatencyHistogram> getPhasesOfRuleType(String ruleType) {
+        Map<ZooKeeperRulePhase, LatencyHistogram> histograms = phasesByRuleType.get(ruleType);
+        if (histograms == null) {
+            Map<ZooKeeperRulePhase, LatencyHistogram> newHistograms = newHistograms();
+            histograms = phasesByRuleType.putIfAbsent(ruleType, newHistograms);
+            if (histograms == null) {
+                histograms = newHistograms;
+            }
+        }
+        return histograms;
+    }
+
+    private static Map<ZooKeeperRulePhase, LatencyHistogram> newHistograms() {
+        Map<ZooKeeperRulePhase, LatencyHistogram> histograms = Maps.newEnumMap(ZooKeeperRulePhase.class);
+        for (ZooKeeperRulePhase phase : ZooKeeperRulePhase.values()) {
+            histograms.put(phase, new LatencyHistogram());
+        }
+        return histograms;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.ServerStats;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * A snapshot of the statistics of a ZooKeeper server, as returned by
+ * {@link ZooKeeperRule#getServerStats()}. These are the statistics ZooKeeper otherwise publishes over
+ * JMX, which {@link NoJMXZooKeeperServer} turns off.
+ * <p>
+ * Request counts and latencies are counted since the server started or since
+ * {@link ZooKeeperRule#resetServerStats()} was last called. Latencies are measured by the server
+ * from the time it read a request until it sent the response, in milliseconds.
+ *
+ * @author juang
+ */
+public final class ZooKeeperServerStats {
+
+    private final long packetsReceived;
+    private final long packetsSent;
+    private final long outstandingRequests;
+    private final long minLatencyMillis;
+    private final long avgLatencyMillis;
+    private final long maxLatencyMillis;
+    private final int aliveConnections;
+    private final int nodeCount;
+    private final int watchCount;
+    private final int ephemeralsCount;
+    private final long approximateDataSize;
+
+    private ZooKeeperServerStats(ServerStats serverStats, int aliveConnections, DataTree dataTree) {
+        this.packetsReceived = serverStats.getPacketsReceived();
+        this.packetsSent = serverStats.getPacketsSent();
+        this.outstandingRequests = serverStats.getOutstandingRequests();
+        this.minLatencyMillis = serverStats.getMinLatency();
+        this.avgLatencyMillis = serverStats.getAvgLatency();
+        this.maxLatencyMillis = serverStats.getMaxLatency();
+        this.aliveConnections = aliveConnections;
+        this.nodeCount = dataTree.getNodeCount();
+        this.watchCount = dataTree.getWatchCount();
+        this.ephemeralsCount = dataTree.getEphemeralsCount();
+        this.approximateDataSize = dataTree.approximateDataSize();
+    }
+
+    static ZooKeeperServerStats of(ZooKeeperServer zkServer) {
+        return new ZooKeeperServerStats(zkServer.serverStats(), zkServer.getNumAliveConnections(),
+                zkServer.getZKDatabase().getDataTree());
+    }
+
+    /**
+     * Returns the number of packets received from clients, which includes their heartbeats.
+     */
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    /**
+     * Returns the number of requests received but not yet answered.
+     */
+    public long getOutstandingRequests() {
+        return outstandingRequests;
+    }
+
+    /**
+     * Returns the lowest request latency, or 0 if no request was answered.
+     */
+    public long getMinLatencyMillis() {
+        return minLatencyMillis;
+    }
+
+    public long getAvgLatencyMillis() {
+        return avgLatencyMillis;
+    }
+
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    public int getAliveConnections() {
+        return aliveConnections;
+    }
+
+    /**
+     * Returns the number of nodes on the server, across all namespaces and including ZooKeeper's own.
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getWatchCount() {
+        return watchCount;
+    }
+
+    public int getEphemeralsCount() {
+        return ephemeralsCount;
+    }
+
+    /**
+     * Returns the size of the paths and data of all nodes, in bytes.
+     */
+    public long getApproximateDataSize() {
+        return approximateDataSize;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("packetsReceived", packetsReceived)
+                .add("packetsSent", packetsSent)
+                .add("outstandingRequests", outstandingRequests)
+                .add("minLatencyMillis", minLatencyMillis)
+                .add("avgLatencyMillis", avgLatencyMillis)
+                .add("maxLatencyMillis", maxLatencyMillis)
+                .add("aliveConnections", aliveConnections)
+                .add("nodeCount", nodeCount)
+                .add("watchCount", watchCount)
+                .add("ephemeralsCount", ephemeralsCount)
+                .add("approximateDataSize", approximateDataSize)
+                .toString();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import java.lang.reflect.Field;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Utilities for reaching the in-process {@link ZooKeeperServer} behind a {@link ServerCnxnFactory}.
+ *
+ * @author juang
+ */
+final class ZooKeeperServers {
+
+    /**
+     * {@link ServerCnxnFactory} only exposes its server through this protected field.
+     */
+    private static final Field ZK_SERVER_FIELD;
+
+    static {
+        try {
+            ZK_SERVER_FIELD = ServerCnxnFactory.class.getDeclaredField("zkServer");
+            ZK_SERVER_FIELD.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private ZooKeeperServers() {
+        // utility class
+    }
+
+    static ZooKeeperServer getServer(ServerCnxnFactory cnxnFactory) {
+        ZooKeeperServer zkServer;
+        try {
+            zkServer = (ZooKeeperServer) ZK_SERVER_FIELD.get(cnxnFactory);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+
+        Preconditions.checkState(zkServer != null, "The ZooKeeper server has not been started");
+        return zkServer;
+    }
+
+    /**
+     * Releases a server obtained from the given config, shutting it down unless the config is a
+     * {@link ReleasingZooKeeperRuleConfig}.
+     */
+    static void releaseServer(ZooKeeperRuleConfig ruleConfig, ServerCnxnFactory cnxnFactory) {
+        if (ruleConfig instanceof ReleasingZooKeeperRuleConfig) {
+            ((ReleasingZooKeeperRuleConfig) ruleConfig).releaseServer(cnxnFactory);
+        } else {
+            cnxnFactory.shutdown();
+        }
+    }
+}
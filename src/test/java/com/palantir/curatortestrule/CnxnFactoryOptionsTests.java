@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.NettyServerCnxnFactory;
+import org.junit.Test;
+
+/**
+ * Tests for {@link CnxnFactoryOptions}.
+ *
+ * @author juang
+ */
+public final class CnxnFactoryOptionsTests {
+
+    @Test
+    public void testNettyAndNioSideBySide() throws Exception {
+        CnxnFactoryOptions netty = CnxnFactoryOptions.netty()
+                .withBossThreads(1)
+                .withWorkerThreads(2)
+                .withBufferSizes(64 * 1024, 64 * 1024);
+        LocalZooKeeperRule nettyRule = new LocalZooKeeperRule("namespace1", 0, new InMemoryZooKeeperRuleConfig(netty));
+        LocalZooKeeperRule nioRule = new LocalZooKeeperRule("namespace2", 0,
+                new InMemoryZooKeeperRuleConfig(CnxnFactoryOptions.nio()));
+
+        try {
+            nettyRule.before();
+            nioRule.before();
+
+            assertTrue(nettyRule.getCnxnFactory() instanceof NettyServerCnxnFactory);
+            assertTrue(nioRule.getCnxnFactory() instanceof NIOServerCnxnFactory);
+            assertEquals(2, countThreads("zookeeper-netty-worker-"));
+
+            for (int i = 0; i < 10; i++) {
+                CuratorFramework client = nettyRule.getConnectedClient(10, TimeUnit.SECONDS);
+                client.create().forPath("/testpath" + i, new byte[] { (byte) i });
+            }
+            assertArrayEquals(new byte[] { 3 }, nettyRule.getClient().getData().forPath("/testpath3"));
+        } finally {
+            nioRule.after();
+            nettyRule.after();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNioCannotBeTuned() {
+        CnxnFactoryOptions.nio().withWorkerThreads(2);
+    }
+
+    private static int countThreads(String prefix) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
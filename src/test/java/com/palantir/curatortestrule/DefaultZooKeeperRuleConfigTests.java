@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.server.NettyServerCnxnFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link DefaultZooKeeperRuleConfig}.
+ *
+ * @author juang
+ */
+public final class DefaultZooKeeperRuleConfigTests {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testSessionTimeoutFollowsTickTime() throws Exception {
+        DefaultZooKeeperRuleConfig config = DefaultZooKeeperRuleConfig.builder()
+                .tickTime(100)
+                .maxSessionTimeout(1000)
+                .cleanupOnExit(true)
+                .build();
+        LocalZooKeeperRule rule1 = new LocalZooKeeperRule("namespace1", 0, config);
+
+        try {
+            rule1.before();
+
+            CuratorFramework client = rule1.getConnectedClient(10, TimeUnit.SECONDS);
+            assertEquals(1000, client.getZookeeperClient().getZooKeeper().getSessionTimeout());
+        } finally {
+            rule1.after();
+            config.cleanup();
+        }
+    }
+
+    @Test
+    public void testFastTestAllowsManyClients() throws Exception {
+        DefaultZooKeeperRuleConfig config = DefaultZooKeeperRuleConfig.fastTest().build();
+        LocalZooKeeperRule rule1 = new LocalZooKeeperRule("namespace1", 0, config);
+
+        try {
+            rule1.before();
+
+            // more than the default limit of 60 connections per host
+            for (int i = 0; i < 100; i++) {
+                rule1.getConnectedClient(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            rule1.after();
+            config.cleanup();
+        }
+    }
+
+    @Test
+    public void testNettyConnections() throws Exception {
+        DefaultZooKeeperRuleConfig config = DefaultZooKeeperRuleConfig.fastTest()
+                .cnxnFactory(NettyServerCnxnFactory.class)
+                .build();
+        LocalZooKeeperRule rule1 = new LocalZooKeeperRule("namespace1", 0, config);
+
+        try {
+            rule1.before();
+            assertTrue(rule1.getCnxnFactory() instanceof NettyServerCnxnFactory);
+
+            CuratorFramework client = rule1.getClient();
+            client.create().forPath("/testpath", new byte[] { 1 });
+            assertArrayEquals(new byte[] { 1 }, client.getData().forPath("/testpath"));
+        } finally {
+            rule1.after();
+            config.cleanup();
+        }
+    }
+
+    @Test
+    public void testCleanupDeletesDirectoriesInBackground() throws Exception {
+        File directory = new File(temporaryFolder.getRoot(), "servers");
+        DefaultZooKeeperRuleConfig config = DefaultZooKeeperRuleConfig.fastTest()
+                .directory(directory)
+                .build();
+        LocalZooKeeperRule rule1 = new LocalZooKeeperRule("namespace1", 0, config);
+        LocalZooKeeperRule rule2 = new LocalZooKeeperRule("namespace2", 0, config);
+
+        try {
+            rule1.before();
+            rule2.before();
+
+            rule1.getClient().create().forPath("/testpath");
+            assertEquals(2, directory.list().length);
+        } finally {
+            rule2.after();
+            rule1.after();
+        }
+
+        DirectoryCleaner.get().await();
+        assertEquals(0, directory.list().length);
+    }
+}
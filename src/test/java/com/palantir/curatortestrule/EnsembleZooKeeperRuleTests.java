@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.junit.Test;
+
+/**
+ * Tests for {@link EnsembleZooKeeperRule}.
+ *
+ * @author juang
+ */
+public final class EnsembleZooKeeperRuleTests {
+
+    @Test
+    public void testConnectToEnsemble() throws Exception {
+        EnsembleZooKeeperRule rule1 = new EnsembleZooKeeperRule("namespace1", 3);
+
+        try {
+            rule1.before();
+
+            assertEquals(3, rule1.getClient().getZookeeperClient().getCurrentConnectionString().split(",").length);
+            assertTrue(rule1.getLeader() >= 0);
+
+            CuratorFramework client = rule1.getClient();
+            client.create().forPath("/testpath", new byte[] { 1 });
+
+            // every member sees the write
+            for (int i = 0; i < rule1.getSize(); i++) {
+                CuratorFramework memberClient = newMemberClient(rule1, i);
+                try {
+                    memberClient.sync().forPath("/testpath");
+                    assertArrayEquals(new byte[] { 1 }, memberClient.getData().forPath("/testpath"));
+                } finally {
+                    memberClient.close();
+                }
+            }
+        } finally {
+            rule1.after();
+        }
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        EnsembleZooKeeperRule rule1 = new EnsembleZooKeeperRule("namespace1", 3);
+
+        rule1.before();
+        String firstMember = rule1.getMemberConnectString(0);
+        rule1.after();
+
+        try {
+            rule1.before();
+
+            // the members of the first run are gone
+            assertNotEquals(firstMember, rule1.getMemberConnectString(0));
+            assertTrue(rule1.getLeader() >= 0);
+            rule1.getClient().create().forPath("/testpath");
+        } finally {
+            rule1.after();
+        }
+    }
+
+    @Test
+    public void testLeaderFailover() throws Exception {
+        EnsembleZooKeeperRule rule1 = new EnsembleZooKeeperRule("namespace1", 3);
+
+        try {
+            rule1.before();
+
+            CuratorFramework client = rule1.getClient();
+            client.create().forPath("/testpath", new byte[] { 1 });
+
+            int oldLeader = rule1.getLeader();
+            rule1.stopMember(oldLeader);
+            rule1.awaitQuorum(30, TimeUnit.SECONDS);
+
+            int newLeader = rule1.getLeader();
+            assertNotEquals(oldLeader, newLeader);
+            assertArrayEquals(new byte[] { 1 }, client.getData().forPath("/testpath"));
+            client.setData().forPath("/testpath", new byte[] { 2 });
+
+            rule1.restartMember(oldLeader);
+            rule1.awaitQuorum(30, TimeUnit.SECONDS);
+
+            CuratorFramework memberClient = newMemberClient(rule1, oldLeader);
+            try {
+                memberClient.sync().forPath("/testpath");
+                assertArrayEquals(new byte[] { 2 }, memberClient.getData().forPath("/testpath"));
+            } finally {
+                memberClient.close();
+            }
+        } finally {
+            rule1.after();
+        }
+    }
+
+    @Test
+    public void testNoJMXBeans() throws Exception {
+        EnsembleZooKeeperRule rule1 = new EnsembleZooKeeperRule("namespace1", 3);
+
+        try {
+            rule1.before();
+
+            Set<ObjectName> beans = ManagementFactory.getPlatformMBeanServer()
+                    .queryNames(new ObjectName("org.apache.ZooKeeperService:*"), null);
+            assertEquals(Collections.emptySet(), beans);
+        } finally {
+            rule1.after();
+        }
+    }
+
+    @Test
+    public void testNotStarted() {
+        EnsembleZooKeeperRule rule1 = new EnsembleZooKeeperRule("namespace1", 3);
+
+        try {
+            rule1.getLeader();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        try {
+            rule1.getMemberConnectString(0);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSnapshotRejected() {
+        new EnsembleZooKeeperRule("namespace1", 3).withSnapshot(new File("snapshot"));
+    }
+
+    private static CuratorFramework newMemberClient(EnsembleZooKeeperRule rule, int index) {
+        CuratorFramework client = CuratorFrameworkFactory.builder()
+                .connectString(rule.getMemberConnectString(index))
+                .namespace("namespace1")
+                .retryPolicy(new RetryOneTime(100))
+                .build();
+        client.start();
+        return client;
+    }
+}
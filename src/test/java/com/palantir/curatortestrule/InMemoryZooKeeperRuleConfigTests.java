@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * Tests for {@link InMemoryZooKeeperRuleConfig}.
+ *
+ * @author juang
+ */
+public final class InMemoryZooKeeperRuleConfigTests {
+
+    @Test
+    public void testConnectToServer() throws Exception {
+        LocalZooKeeperRule rule1 = new LocalZooKeeperRule("namespace1", 0, new InMemoryZooKeeperRuleConfig());
+
+        try {
+            rule1.before();
+
+            CuratorFramework client = rule1.getClient();
+
+            String path = "/testpath";
+            byte[] data = new byte[] { 1 };
+            client.create().forPath(path, data);
+            assertArrayEquals(data, client.getData().forPath(path));
+            client.setData().forPath(path, new byte[] { 2 });
+            assertArrayEquals(new byte[] { 2 }, client.getData().forPath(path));
+            client.delete().forPath(path);
+            assertNull(client.checkExists().forPath(path));
+        } finally {
+            rule1.after();
+        }
+    }
+
+    @Test
+    public void testNothingWrittenToDisk() throws Exception {
+        LocalZooKeeperRule rule1 = new LocalZooKeeperRule("namespace1", 0, new InMemoryZooKeeperRuleConfig());
+
+        try {
+            rule1.before();
+
+            CuratorFramework client = rule1.getClient();
+            for (int i = 0; i < 100; i++) {
+                client.create().creatingParentsIfNeeded().forPath("/testpath/" + i, new byte[] { 1 });
+            }
+            assertEquals(100, client.getChildren().forPath("/testpath").size());
+
+            File placeholderDir = new File(System.getProperty("java.io.tmpdir"), "curator-test-rule-in-memory");
+            assertEquals(0, FileUtils.listFiles(placeholderDir, null, true).size());
+        } finally {
+            rule1.after();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ *
+ * @author juang
+ */
+public final class LatencyHistogramTests {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99, TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(10, histogram.getCount());
+        assertEquals(55, histogram.getTotal(TimeUnit.NANOSECONDS));
+        assertEquals(5, histogram.getPercentile(50, TimeUnit.NANOSECONDS));
+        assertEquals(10, histogram.getPercentile(100, TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void testPercentilesAreAccurate() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long millis = 1; millis <= 1000; millis++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        assertWithinError(500, histogram.getPercentile(50, TimeUnit.MILLISECONDS));
+        assertWithinError(990, histogram.getPercentile(99, TimeUnit.MILLISECONDS));
+        assertEquals(1000, histogram.getPercentile(100, TimeUnit.MILLISECONDS));
+        assertEquals(1000, histogram.getMax(TimeUnit.MILLISECONDS));
+    }
+
+    private static void assertWithinError(long expected, long actual) {
+        assertTrue(expected + " vs " + actual, actual >= expected && actual <= expected * 1.07);
+    }
+}
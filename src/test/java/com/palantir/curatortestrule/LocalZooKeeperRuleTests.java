@@ -17,11 +17,14 @@
 package com.palantir.curatortestrule;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.net.BindException;
+
 import org.apache.curator.framework.CuratorFramework;
 import org.junit.Test;
 
@@ -113,4 +116,50 @@ public final class LocalZooKeeperRuleTests {
             rule1.after();
         }
     }
+
+    @Test
+    public void testPortRangeSkipsTakenPorts() throws Exception {
+        PortStrategy portStrategy = PortStrategies.range(9600, 9601);
+        final LocalZooKeeperRule rule1 = new LocalZooKeeperRule("namespace1", portStrategy, new DefaultZooKeeperRuleConfig());
+        final LocalZooKeeperRule rule2 = new LocalZooKeeperRule("namespace1", portStrategy, new DefaultZooKeeperRuleConfig());
+
+        try {
+            rule1.before();
+
+            try {
+                rule2.before();
+
+                int port1 = rule1.getCnxnFactory().getLocalPort();
+                int port2 = rule2.getCnxnFactory().getLocalPort();
+                assertTrue(port1 == 9600 || port1 == 9601);
+                assertEquals(9600 + 9601 - port1, port2);
+            } finally {
+                rule2.after();
+            }
+        } finally {
+            rule1.after();
+        }
+    }
+
+    @Test
+    public void testPortRangeExhausted() throws Exception {
+        PortStrategy portStrategy = PortStrategies.range(9600, 9600);
+        final LocalZooKeeperRule rule1 = new LocalZooKeeperRule("namespace1", portStrategy, new DefaultZooKeeperRuleConfig());
+        final LocalZooKeeperRule rule2 = new LocalZooKeeperRule("namespace1", portStrategy, new DefaultZooKeeperRuleConfig());
+
+        try {
+            rule1.before();
+
+            try {
+                rule2.before();
+                fail();
+            } catch (IllegalStateException e) {
+                assertTrue(e.getCause().getCause() instanceof BindException);
+            } finally {
+                rule2.after();
+            }
+        } finally {
+            rule1.after();
+        }
+    }
 }
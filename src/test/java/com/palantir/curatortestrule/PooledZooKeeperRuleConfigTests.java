@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PooledZooKeeperRuleConfig}.
+ *
+ * @author juang
+ */
+public final class PooledZooKeeperRuleConfigTests {
+
+    private final PooledZooKeeperRuleConfig pool = new PooledZooKeeperRuleConfig(2);
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testServersAreNotReused() throws Exception {
+        LocalZooKeeperRule rule1 = new LocalZooKeeperRule("namespace1", 0, pool);
+        LocalZooKeeperRule rule2 = new LocalZooKeeperRule("namespace1", 0, pool);
+
+        int port1;
+        try {
+            rule1.before();
+            port1 = rule1.getCnxnFactory().getLocalPort();
+            rule1.getClient().create().forPath("/testpath");
+        } finally {
+            rule1.after();
+        }
+
+        try {
+            rule2.before();
+            assertNotEquals(port1, rule2.getCnxnFactory().getLocalPort());
+            assertNull(rule2.getClient().checkExists().forPath("/testpath"));
+        } finally {
+            rule2.after();
+        }
+    }
+
+    @Test
+    public void testMoreRulesThanPoolSize() throws Exception {
+        LocalZooKeeperRule rule1 = new LocalZooKeeperRule("namespace1", 0, pool);
+        LocalZooKeeperRule rule2 = new LocalZooKeeperRule("namespace1", 0, pool);
+        LocalZooKeeperRule rule3 = new LocalZooKeeperRule("namespace1", 0, pool);
+
+        try {
+            rule1.before();
+            rule2.before();
+            rule3.before();
+
+            for (LocalZooKeeperRule rule : new LocalZooKeeperRule[] { rule1, rule2, rule3 }) {
+                CuratorFramework client = rule.getClient();
+                client.create().forPath("/testpath");
+                assertEquals(1, client.getChildren().forPath("/").size());
+            }
+        } finally {
+            rule3.after();
+            rule2.after();
+            rule1.after();
+        }
+    }
+
+    @Test
+    public void testNonZeroPortIsNotPooled() throws Exception {
+        LocalZooKeeperRule rule1 = new LocalZooKeeperRule("namespace1", 9500, pool);
+
+        try {
+            rule1.before();
+            assertEquals(9500, rule1.getCnxnFactory().getLocalPort());
+        } finally {
+            rule1.after();
+        }
+    }
+
+    @Test
+    public void testStartupFailureIsNotWrapped() {
+        final IllegalStateException failure = new IllegalStateException("no server");
+        PooledZooKeeperRuleConfig failingPool = new PooledZooKeeperRuleConfig(new ZooKeeperRuleConfig() {
+            @Override
+            public ServerCnxnFactory getServer(int port) {
+                throw failure;
+            }
+
+            @Override
+            public void cleanup() {
+                // nothing to clean up
+            }
+        }, 1);
+
+        try {
+            failingPool.getServer(0);
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        } finally {
+            failingPool.close();
+        }
+    }
+}
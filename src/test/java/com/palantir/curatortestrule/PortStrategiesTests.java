@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PortStrategies}.
+ *
+ * @author juang
+ */
+public final class PortStrategiesTests {
+
+    @After
+    public void tearDown() {
+        System.clearProperty("zookeeper.test.fork");
+        System.clearProperty("zookeeper.test.port");
+    }
+
+    @Test
+    public void testFixed() {
+        PortStrategy portStrategy = PortStrategies.parse("9500");
+
+        assertEquals(9500, portStrategy.getPort(0));
+        assertEquals(-1, portStrategy.getPort(1));
+    }
+
+    @Test
+    public void testEphemeral() {
+        PortStrategy portStrategy = PortStrategies.parse("0");
+
+        assertEquals(0, portStrategy.getPort(0));
+        assertEquals(-1, portStrategy.getPort(1));
+    }
+
+    @Test
+    public void testRangeTriesEveryPort() {
+        PortStrategy portStrategy = PortStrategies.parse("9600-9602");
+
+        int sum = 0;
+        for (int attempt = 0; attempt < 3; attempt++) {
+            int port = portStrategy.getPort(attempt);
+            assertTrue(port >= 9600 && port <= 9602);
+            sum += port;
+        }
+        assertEquals(9600 + 9601 + 9602, sum);
+        assertEquals(-1, portStrategy.getPort(3));
+    }
+
+    @Test
+    public void testRangeTriesEveryPortWhileSharedBetweenThreads() throws InterruptedException {
+        final PortStrategy portStrategy = PortStrategies.parse("9600-9602");
+
+        int sum = portStrategy.getPort(0);
+
+        // another rule starting meanwhile must not make this one skip ports
+        Thread otherRule = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                portStrategy.getPort(0);
+                portStrategy.getPort(0);
+            }
+        });
+        otherRule.start();
+        otherRule.join();
+
+        sum += portStrategy.getPort(1) + portStrategy.getPort(2);
+        assertEquals(9600 + 9601 + 9602, sum);
+    }
+
+    @Test
+    public void testPerFork() {
+        System.setProperty("zookeeper.test.fork", "2");
+        PortStrategy portStrategy = PortStrategies.parse("9600+10");
+
+        for (int attempt = 0; attempt < 10; attempt++) {
+            int port = portStrategy.getPort(attempt);
+            assertTrue(port >= 9620 && port < 9630);
+        }
+        assertEquals(-1, portStrategy.getPort(10));
+    }
+
+    @Test
+    public void testPerForkWrapsAround() {
+        System.setProperty("zookeeper.test.fork", "10");
+        PortStrategy portStrategy = PortStrategies.perFork(65500, 10);
+
+        // only 3 forks fit below the highest port, so fork 10 shares the ports of fork 1
+        int port = portStrategy.getPort(0);
+        assertTrue(port >= 65510 && port < 65520);
+    }
+
+    @Test
+    public void testDefaultPortOfSingleServerRules() {
+        System.setProperty("zookeeper.test.fork", "2");
+        System.setProperty("zookeeper.test.port", "9600+10");
+
+        // the same port every time, so that shared rules agree on it
+        assertEquals(9620, ZooKeeperRule.getDefaultPort());
+        assertEquals(9620, ZooKeeperRule.getDefaultPort());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalid() {
+        PortStrategies.parse("port");
+    }
+}
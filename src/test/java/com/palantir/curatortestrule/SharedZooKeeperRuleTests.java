@@ -19,11 +19,36 @@ package com.palantir.curatortestrule;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.zookeeper.server.ServerCnxnFactory;
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
+
 /**
  * Tests for {@link SharedZooKeeperRule}.
  *
@@ -118,4 +143,472 @@ public final class SharedZooKeeperRuleTests {
             rule1.after();
         }
     }
+
+    @Test
+    public void testParallelAcquiresOnDifferentPortsOverlap() throws Exception {
+        int parallelism = 4;
+        final CountDownLatch startupsInProgress = new CountDownLatch(parallelism);
+        ZooKeeperRuleConfig ruleConfig = new ForwardingRuleConfig(new DefaultZooKeeperRuleConfig()) {
+            @Override
+            public ServerCnxnFactory getServer(int port) {
+                startupsInProgress.countDown();
+                try {
+                    // only returns promptly if every other startup is running at the same time
+                    if (!startupsInProgress.await(10, TimeUnit.SECONDS)) {
+                        throw new IllegalStateException("Server startups did not overlap");
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.getServer(0);
+            }
+        };
+
+        List<SharedZooKeeperRule> rules = Lists.newArrayList();
+        for (int i = 0; i < parallelism; i++) {
+            // the ports are only used as keys, the config above always binds to port 0
+            rules.add(new SharedZooKeeperRule("namespace1", 20000 + i, ruleConfig));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<ServerCnxnFactory>> servers = Lists.newArrayList();
+            for (final SharedZooKeeperRule rule : rules) {
+                servers.add(executor.submit(new Callable<ServerCnxnFactory>() {
+                    @Override
+                    public ServerCnxnFactory call() {
+                        rule.before();
+                        return rule.getCnxnFactory();
+                    }
+                }));
+            }
+
+            for (Future<ServerCnxnFactory> server : servers) {
+                assertNotEquals(0, server.get(30, TimeUnit.SECONDS).getLocalPort());
+            }
+        } finally {
+            executor.shutdownNow();
+            for (SharedZooKeeperRule rule : rules) {
+                rule.after();
+            }
+        }
+    }
+
+    @Test
+    public void testParallelAcquiresOnSamePortStartOneServer() throws Exception {
+        int parallelism = 8;
+        final AtomicInteger startups = new AtomicInteger();
+        ZooKeeperRuleConfig ruleConfig = new ForwardingRuleConfig(new DefaultZooKeeperRuleConfig()) {
+            @Override
+            public ServerCnxnFactory getServer(int port) {
+                startups.incrementAndGet();
+                return super.getServer(port);
+            }
+        };
+
+        final CountDownLatch go = new CountDownLatch(1);
+        List<SharedZooKeeperRule> rules = Lists.newArrayList();
+        for (int i = 0; i < parallelism; i++) {
+            rules.add(new SharedZooKeeperRule("namespace" + i, 0, ruleConfig));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<ServerCnxnFactory>> servers = Lists.newArrayList();
+            for (final SharedZooKeeperRule rule : rules) {
+                servers.add(executor.submit(new Callable<ServerCnxnFactory>() {
+                    @Override
+                    public ServerCnxnFactory call() throws InterruptedException {
+                        go.await();
+                        rule.before();
+                        return rule.getCnxnFactory();
+                    }
+                }));
+            }
+            go.countDown();
+
+            ServerCnxnFactory first = servers.get(0).get(30, TimeUnit.SECONDS);
+            for (Future<ServerCnxnFactory> server : servers) {
+                assertEquals(first, server.get(30, TimeUnit.SECONDS));
+            }
+            assertEquals(1, startups.get());
+        } finally {
+            executor.shutdownNow();
+            for (SharedZooKeeperRule rule : rules) {
+                rule.after();
+            }
+        }
+    }
+
+    @Test
+    public void testFailedStartupIsReleasedByWaitingRules() throws Exception {
+        final CountDownLatch startupEntered = new CountDownLatch(1);
+        final CountDownLatch failStartup = new CountDownLatch(1);
+        final AtomicInteger startups = new AtomicInteger();
+        ZooKeeperRuleConfig ruleConfig = new PortZeroRuleConfig() {
+            @Override
+            public ServerCnxnFactory getServer(int port) {
+                if (startups.getAndIncrement() == 0) {
+                    startupEntered.countDown();
+                    Uninterruptibles.awaitUninterruptibly(failStartup);
+                    throw new IllegalStateException("startup failed");
+                }
+                return super.getServer(port);
+            }
+        };
+        final SharedZooKeeperRule rule1 = new SharedZooKeeperRule("namespace1", 20107, ruleConfig, 0);
+        final SharedZooKeeperRule rule2 = new SharedZooKeeperRule("namespace2", 20107, ruleConfig, 0);
+        SharedZooKeeperRule rule3 = new SharedZooKeeperRule("namespace3", 20107, ruleConfig, 0);
+
+        Thread thread1 = new Thread(new BeforeRunnable(rule1));
+        Thread thread2 = new Thread(new BeforeRunnable(rule2));
+        try {
+            thread1.start();
+            startupEntered.await();
+
+            // rule2 retains the starting server and waits for it
+            thread2.start();
+            while (thread2.getState() != Thread.State.WAITING) {
+                Thread.sleep(10);
+            }
+            failStartup.countDown();
+            thread1.join();
+            thread2.join();
+        } finally {
+            rule2.after();
+            rule1.after();
+        }
+
+        // the failed server was replaced rather than retained again
+        try {
+            rule3.before();
+            rule3.getClient().create().forPath("/testpath");
+            assertEquals(2, startups.get());
+        } finally {
+            rule3.after();
+        }
+    }
+
+    @Test
+    public void testServerRestartsAfterLastRelease() throws Exception {
+        SharedZooKeeperRule rule1 = new SharedZooKeeperRule("namespace1", 0, new DefaultZooKeeperRuleConfig());
+        SharedZooKeeperRule rule2 = new SharedZooKeeperRule("namespace1", 0, new DefaultZooKeeperRuleConfig());
+
+        ServerCnxnFactory first;
+        try {
+            rule1.before();
+            first = rule1.getCnxnFactory();
+        } finally {
+            rule1.after();
+        }
+
+        try {
+            rule2.before();
+            assertNotEquals(first, rule2.getCnxnFactory());
+            assertTrue(rule2.getCnxnFactory().getLocalPort() != 0);
+        } finally {
+            rule2.after();
+        }
+    }
+
+    @Test
+    public void testLingeringServerIsReusedAndWiped() throws Exception {
+        ZooKeeperRuleConfig ruleConfig = new PortZeroRuleConfig();
+        SharedZooKeeperRule rule1 = new SharedZooKeeperRule("namespace1", 20100, ruleConfig, 60000);
+        SharedZooKeeperRule rule2 = new SharedZooKeeperRule("namespace2", 20100, ruleConfig, 0);
+
+        ServerCnxnFactory first;
+        try {
+            rule1.before();
+            first = rule1.getCnxnFactory();
+            rule1.getClient().create().forPath("/testpath");
+        } finally {
+            rule1.after();
+        }
+
+        try {
+            rule2.before();
+            assertEquals(first, rule2.getCnxnFactory());
+
+            CuratorFramework client = rule2.getClient().usingNamespace(null);
+            assertEquals(Lists.newArrayList("zookeeper"), client.getChildren().forPath("/"));
+        } finally {
+            rule2.after();
+        }
+    }
+
+    @Test
+    public void testLingeringServerIsClosedAfterLingerPeriod() throws Exception {
+        ZooKeeperRuleConfig ruleConfig = new PortZeroRuleConfig();
+        SharedZooKeeperRule rule1 = new SharedZooKeeperRule("namespace1", 20101, ruleConfig, 100);
+        SharedZooKeeperRule rule2 = new SharedZooKeeperRule("namespace1", 20101, ruleConfig, 0);
+
+        ServerCnxnFactory first;
+        try {
+            rule1.before();
+            first = rule1.getCnxnFactory();
+        } finally {
+            rule1.after();
+        }
+
+        Thread.sleep(1000);
+
+        try {
+            rule2.before();
+            assertNotEquals(first, rule2.getCnxnFactory());
+        } finally {
+            rule2.after();
+        }
+    }
+
+    @Test
+    public void testPooledClientsAreShared() throws Exception {
+        ZooKeeperRuleConfig ruleConfig = new PortZeroRuleConfig();
+        SharedZooKeeperRule rule1 = new SharedZooKeeperRule("namespace1", 20102, ruleConfig, 0).withPooledClients();
+        SharedZooKeeperRule rule2 = new SharedZooKeeperRule("namespace2", 20102, ruleConfig, 0).withPooledClients();
+
+        CuratorFramework client2;
+        try {
+            rule1.before();
+            rule2.before();
+
+            CuratorFramework client1 = rule1.getClient();
+            client2 = rule2.getClient();
+            assertSame(client1.getZookeeperClient(), client2.getZookeeperClient());
+            assertSame(client1.getZookeeperClient(), rule1.getClient().getZookeeperClient());
+
+            client1.create().forPath("/testpath");
+            assertNull(client2.checkExists().forPath("/testpath"));
+
+            // the pooled client stays open until the server is shut down
+            rule1.after();
+            client2.create().forPath("/testpath");
+        } finally {
+            rule2.after();
+        }
+
+        assertEquals(CuratorFrameworkState.STOPPED, client2.getState());
+    }
+
+    @Test
+    public void testOnlyDefaultClientIsPooled() throws Exception {
+        ZooKeeperRuleConfig ruleConfig = new PortZeroRuleConfig();
+        SharedZooKeeperRule rule1 = new SharedZooKeeperRule("namespace1", 20106, ruleConfig, 0).withPooledClients();
+
+        CuratorFramework client;
+        try {
+            rule1.before();
+
+            client = rule1.getClient(new RetryOneTime(100));
+            assertNotSame(rule1.getClient().getZookeeperClient(), client.getZookeeperClient());
+            assertNotSame(client.getZookeeperClient(), rule1.getClient(new RetryOneTime(100)).getZookeeperClient());
+        } finally {
+            rule1.after();
+        }
+
+        assertEquals(CuratorFrameworkState.STOPPED, client.getState());
+    }
+
+    @Test
+    public void testEventLatencyRecorderDisablesPooling() throws Exception {
+        ZooKeeperRuleConfig ruleConfig = new PortZeroRuleConfig();
+        EventLatencyRecorder recorder = new EventLatencyRecorder(1, TimeUnit.SECONDS);
+        SharedZooKeeperRule rule1 = new SharedZooKeeperRule("namespace1", 20108, ruleConfig, 0).withPooledClients();
+        SharedZooKeeperRule rule2 = new SharedZooKeeperRule("namespace2", 20108, ruleConfig, 0).withPooledClients();
+        rule2.withEventLatencyRecorder(recorder);
+
+        CuratorFramework client2;
+        try {
+            rule1.before();
+            rule2.before();
+
+            client2 = rule2.getClient();
+            assertNotSame(rule1.getClient().getZookeeperClient(), client2.getZookeeperClient());
+
+            client2.create().forPath("/testpath");
+            client2.getData().watched().forPath("/testpath");
+            recorder.writeStarted("/testpath");
+            client2.setData().forPath("/testpath", new byte[] { 1 });
+            assertTrue(recorder.awaitEvents(10, TimeUnit.SECONDS));
+            assertEquals(1, recorder.getEventCount());
+        } finally {
+            rule2.after();
+            rule1.after();
+        }
+
+        assertEquals(CuratorFrameworkState.STOPPED, client2.getState());
+    }
+
+    @Test
+    public void testPooledClientsOnLingeringServer() throws Exception {
+        ZooKeeperRuleConfig ruleConfig = new PortZeroRuleConfig();
+        SharedZooKeeperRule rule1 = new SharedZooKeeperRule("namespace1", 20103, ruleConfig, 60000).withPooledClients();
+        SharedZooKeeperRule rule2 = new SharedZooKeeperRule("namespace1", 20103, ruleConfig, 0).withPooledClients();
+
+        try {
+            rule1.before();
+            rule1.getClient().create().forPath("/testpath1");
+        } finally {
+            rule1.after();
+        }
+
+        try {
+            rule2.before();
+
+            // the namespace was deleted along with everything else, and has to be created again
+            CuratorFramework client = rule2.getClient();
+            client.create().forPath("/testpath2");
+            assertNull(client.checkExists().forPath("/testpath1"));
+            assertNotNull(client.checkExists().forPath("/testpath2"));
+        } finally {
+            rule2.after();
+        }
+    }
+
+    @Test
+    public void testCrossProcessSharing() throws Exception {
+        File directory = Files.createTempDir();
+        SharedZooKeeperRule rule = newCrossProcessRule("namespace1", 20104, directory);
+
+        try {
+            rule.before();
+            int port = rule.getCnxnFactory().getLocalPort();
+
+            Process child = startJvm(AttachingMain.class, directory.getPath(), "20104", Integer.toString(port));
+            assertEquals(0, child.waitFor());
+
+            CuratorFramework client = rule.getClient().usingNamespace("child");
+            assertNotNull(client.checkExists().forPath("/testpath"));
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testCrossProcessServerOfExitedJvmIsDiscarded() throws Exception {
+        File directory = Files.createTempDir();
+        Files.write("port=1\n", new File(directory, "zookeeper-20105.properties"), Charsets.UTF_8);
+        SharedZooKeeperRule rule = newCrossProcessRule("namespace1", 20105, directory);
+
+        try {
+            rule.before();
+
+            assertNotEquals(1, rule.getCnxnFactory().getLocalPort());
+            rule.getClient().create().forPath("/testpath");
+        } finally {
+            rule.after();
+        }
+    }
+
+    private static SharedZooKeeperRule newCrossProcessRule(String namespace, int port, File directory) {
+        System.setProperty("zookeeper.test.crossprocess.dir", directory.getPath());
+        try {
+            return new SharedZooKeeperRule(namespace, port, new DefaultZooKeeperRuleConfig(), 0);
+        } finally {
+            System.clearProperty("zookeeper.test.crossprocess.dir");
+        }
+    }
+
+    private static Process startJvm(Class<?> mainClass, String... args) throws Exception {
+        List<String> classPath = Lists.newArrayList();
+        ClassLoader classLoader = SharedZooKeeperRuleTests.class.getClassLoader();
+        if (classLoader instanceof URLClassLoader) {
+            for (URL url : ((URLClassLoader) classLoader).getURLs()) {
+                classPath.add(new File(url.toURI()).getPath());
+            }
+        } else {
+            classPath.add(System.getProperty("java.class.path"));
+        }
+
+        List<String> command = Lists.newArrayList(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", Joiner.on(File.pathSeparator).join(classPath),
+                mainClass.getName());
+        command.addAll(Lists.newArrayList(args));
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    /**
+     * Attaches to the server started by the test's JVM and creates a node on it.
+     */
+    public static final class AttachingMain {
+        private AttachingMain() {
+            // main class
+        }
+
+        public static void main(String[] args) throws Exception {
+            File directory = new File(args[0]);
+            int key = Integer.parseInt(args[1]);
+            int expectedPort = Integer.parseInt(args[2]);
+
+            SharedZooKeeperRule rule = newCrossProcessRule("child", key, directory);
+            try {
+                rule.before();
+
+                assertEquals("127.0.0.1:" + expectedPort, rule.getConnectString());
+                rule.getClient().create().forPath("/testpath");
+            } finally {
+                rule.after();
+            }
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Runs {@link SharedZooKeeperRule#before()}, ignoring the exception of a failed startup.
+     */
+    private static final class BeforeRunnable implements Runnable {
+        private final SharedZooKeeperRule rule;
+
+        BeforeRunnable(SharedZooKeeperRule rule) {
+            this.rule = rule;
+        }
+
+        @Override
+        public void run() {
+            try {
+                rule.before();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Binds to port 0 no matter which port is requested, so that the requested port is only used as a
+     * key for sharing.
+     */
+    private static class PortZeroRuleConfig extends ForwardingRuleConfig {
+        PortZeroRuleConfig() {
+            super(new DefaultZooKeeperRuleConfig());
+        }
+
+        @Override
+        public ServerCnxnFactory getServer(int port) {
+            return super.getServer(0);
+        }
+    }
+
+    private static class ForwardingRuleConfig implements ReleasingZooKeeperRuleConfig {
+        private final ZooKeeperRuleConfig delegate;
+
+        ForwardingRuleConfig(ZooKeeperRuleConfig delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public ServerCnxnFactory getServer(int port) {
+            return delegate.getServer(port);
+        }
+
+        @Override
+        public void releaseServer(ServerCnxnFactory cnxnFactory) {
+            ZooKeeperServers.releaseServer(delegate, cnxnFactory);
+        }
+
+        @Override
+        public void cleanup() {
+            delegate.cleanup();
+        }
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ZooKeeperLoadDriver}.
+ *
+ * @author juang
+ */
+public final class ZooKeeperLoadDriverTests {
+
+    @Test
+    public void testMixedLoad() throws Exception {
+        LocalZooKeeperRule rule = new LocalZooKeeperRule("namespace1", 0, new InMemoryZooKeeperRuleConfig());
+
+        try {
+            rule.before();
+
+            ZooKeeperLoadReport report = new ZooKeeperLoadDriver(rule)
+                    .clients(2)
+                    .threads(4)
+                    .nodes(10)
+                    .operation(LoadOperation.CREATE, 1)
+                    .operation(LoadOperation.DELETE, 1)
+                    .operation(LoadOperation.GET_DATA, 4)
+                    .operation(LoadOperation.SET_DATA, 2)
+                    .operation(LoadOperation.WATCH, 1)
+                    .duration(500, TimeUnit.MILLISECONDS)
+                    .run();
+
+            for (LoadOperation operation : LoadOperation.values()) {
+                assertTrue(operation.toString(), report.getCount(operation) > 0);
+                assertEquals(0, report.getErrorCount(operation));
+            }
+
+            // with only 10 nodes, creates and deletes keep running into each other
+            assertTrue(report.getConflictCount(LoadOperation.CREATE) > 0);
+            assertTrue(report.getConflictCount(LoadOperation.DELETE) > 0);
+            assertTrue(report.getElapsed(TimeUnit.MILLISECONDS) >= 500);
+            assertTrue(report.getThroughput() > 0);
+            assertTrue(report.getPercentile(LoadOperation.GET_DATA, 99, TimeUnit.NANOSECONDS)
+                    <= report.getMax(LoadOperation.GET_DATA, TimeUnit.NANOSECONDS));
+            assertTrue(report.getSummary().contains("SET_DATA"));
+
+            // every client and thread was put to use
+            assertEquals(2, rule.getServerStats().getAliveConnections());
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOperationNotInMix() {
+        LocalZooKeeperRule rule = new LocalZooKeeperRule("namespace1", 0, new InMemoryZooKeeperRuleConfig());
+
+        try {
+            rule.before();
+
+            ZooKeeperLoadReport report = new ZooKeeperLoadDriver(rule)
+                    .duration(100, TimeUnit.MILLISECONDS)
+                    .run();
+
+            assertTrue(report.getCount(LoadOperation.GET_DATA) > 0);
+            report.getCount(LoadOperation.SET_DATA);
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownConfig() {
+        ZooKeeperLoadDriver.main(new String[] { "config=", "duration=1" });
+    }
+}
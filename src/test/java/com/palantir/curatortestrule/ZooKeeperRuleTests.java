@@ -0,0 +1,747 @@
+/*
+ * Copyright 2014 Palantir Technologies, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.curatortestrule;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestRule;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+/**
+ * Tests for the functionality shared by all {@link ZooKeeperRule}s.
+ *
+ * @author juang
+ */
+public final class ZooKeeperRuleTests {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testSubclassStartingServerInBefore() throws Exception {
+        BeforeStartedZooKeeperRule rule = new BeforeStartedZooKeeperRule();
+        try {
+            rule.before();
+            rule.getClient().create().forPath("/testpath");
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testResetDeletesNamespace() throws Exception {
+        SharedZooKeeperRule rule1 = new SharedZooKeeperRule("namespace1", 0, new DefaultZooKeeperRuleConfig());
+        SharedZooKeeperRule rule2 = new SharedZooKeeperRule("namespace2", 0, new DefaultZooKeeperRuleConfig());
+
+        try {
+            rule1.before();
+            rule2.before();
+
+            CuratorFramework client1 = rule1.getClient();
+            CuratorFramework client2 = rule2.getClient();
+
+            // more nodes than fit in a single multi() batch
+            for (int i = 0; i < 1500; i++) {
+                client1.create().creatingParentsIfNeeded().forPath("/a/b" + (i % 3) + "/c" + i);
+            }
+            client1.create().forPath("/zookeeper");
+            client2.create().forPath("/testpath");
+
+            rule1.reset();
+
+            assertEquals(0, client1.getChildren().forPath("/").size());
+            assertNotNull(client2.checkExists().forPath("/testpath"));
+
+            // the rule can be reset repeatedly
+            client1.create().forPath("/testpath");
+            rule1.reset();
+            assertEquals(0, client1.getChildren().forPath("/").size());
+        } finally {
+            rule2.after();
+            rule1.after();
+        }
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        File snapshot = temporaryFolder.newFile();
+        LocalZooKeeperRule rule1 = new LocalZooKeeperRule("namespace1", 0, new DefaultZooKeeperRuleConfig());
+
+        try {
+            rule1.before();
+
+            CuratorFramework client = rule1.getClient();
+            for (int i = 0; i < 100; i++) {
+                client.create().creatingParentsIfNeeded().forPath("/a/b" + i, new byte[] { (byte) i });
+            }
+            client.create().withMode(CreateMode.EPHEMERAL).forPath("/ephemeral");
+
+            rule1.captureSnapshot(snapshot);
+        } finally {
+            rule1.after();
+        }
+
+        ZooKeeperRule rule2 = new LocalZooKeeperRule("namespace2", 0, new DefaultZooKeeperRuleConfig())
+                .withSnapshot(snapshot);
+
+        try {
+            rule2.before();
+
+            CuratorFramework client = rule2.getClient();
+            assertEquals(100, client.getChildren().forPath("/a").size());
+            assertArrayEquals(new byte[] { 42 }, client.getData().forPath("/a/b42"));
+            assertNull(client.checkExists().forPath("/ephemeral"));
+
+            // loaded nodes behave like any other node
+            client.setData().forPath("/a/b42", new byte[] { 1 });
+            assertArrayEquals(new byte[] { 1 }, client.getData().forPath("/a/b42"));
+            client.create().forPath("/a/c");
+            client.delete().forPath("/a/b0");
+            assertEquals(100, client.getChildren().forPath("/a").size());
+        } finally {
+            rule2.after();
+        }
+    }
+
+    @Test
+    public void testCloseClients() throws Exception {
+        LocalZooKeeperRule rule = new LocalZooKeeperRule("namespace1", 0, new DefaultZooKeeperRuleConfig());
+        try {
+            rule.before();
+
+            List<CuratorFramework> clients = Lists.newArrayList();
+            for (int i = 0; i < 20; i++) {
+                CuratorFramework client = rule.getClient();
+                client.create().withMode(CreateMode.EPHEMERAL).forPath("/ephemeral" + i);
+                clients.add(client);
+            }
+            // already closed clients are skipped
+            clients.get(0).close();
+
+            rule.closeClients();
+
+            for (CuratorFramework client : clients) {
+                assertEquals(CuratorFrameworkState.STOPPED, client.getState());
+            }
+            assertEquals(0, rule.getClient().getChildren().forPath("/").size());
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testSkipSessionClose() throws Exception {
+        ZooKeeperRule rule = new LocalZooKeeperRule("namespace1", 0, new DefaultZooKeeperRuleConfig())
+                .skipSessionClose();
+        try {
+            rule.before();
+
+            CuratorFramework client = rule.getClient();
+            client.create().withMode(CreateMode.EPHEMERAL).forPath("/ephemeral");
+
+            rule.closeClients();
+
+            // the session was dropped rather than closed, so it is still alive on the server
+            assertEquals(CuratorFrameworkState.STOPPED, client.getState());
+            assertNotNull(rule.getClient().checkExists().forPath("/ephemeral"));
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testSkipSessionCloseIgnoredForSharedServers() throws Exception {
+        ZooKeeperRule rule = new SharedZooKeeperRule("namespace1", 0, new DefaultZooKeeperRuleConfig())
+                .skipSessionClose();
+        try {
+            rule.before();
+
+            rule.getClient().create().withMode(CreateMode.EPHEMERAL).forPath("/ephemeral");
+
+            rule.closeClients();
+
+            assertNull(rule.getClient().checkExists().forPath("/ephemeral"));
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testGetConnectedClient() throws Exception {
+        LocalZooKeeperRule rule = new LocalZooKeeperRule("namespace1", 0, new DefaultZooKeeperRuleConfig());
+        try {
+            rule.before();
+
+            for (int i = 0; i < 10; i++) {
+                CuratorFramework client = rule.getConnectedClient(10, TimeUnit.SECONDS);
+                assertTrue(client.getZookeeperClient().isConnected());
+            }
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testGetConnectedClientTimesOut() throws Exception {
+        LocalZooKeeperRule rule = new LocalZooKeeperRule("namespace1", 0, new DefaultZooKeeperRuleConfig());
+        try {
+            rule.before();
+            rule.closeServer();
+
+            try {
+                rule.getConnectedClient(200, TimeUnit.MILLISECONDS);
+                fail();
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("200 MILLISECONDS"));
+            }
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testPreconnectClients() throws Exception {
+        ZooKeeperRule rule = new LocalZooKeeperRule("namespace1", 0, new DefaultZooKeeperRuleConfig())
+                .preconnectClients(3);
+        try {
+            rule.before();
+
+            // resetting doesn't use up the preconnected clients
+            rule.reset();
+
+            Set<CuratorFramework> clients = Sets.newIdentityHashSet();
+            for (int i = 0; i < 3; i++) {
+                CuratorFramework client = rule.getClient();
+                assertTrue(client.getZookeeperClient().isConnected());
+                clients.add(client);
+            }
+            assertEquals(3, clients.size());
+            assertFalse(clients.contains(rule.getClient()));
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testTimings() throws Exception {
+        ZooKeeperRuleTimings timings = new ZooKeeperRuleTimings();
+        ZooKeeperRuleListeners.addListener(timings);
+
+        LocalZooKeeperRule rule = new LocalZooKeeperRule("namespace1", 0, new DefaultZooKeeperRuleConfig());
+        try {
+            rule.before();
+            rule.getClient().blockUntilConnected();
+            rule.getClient().blockUntilConnected();
+
+            // connections are reported by the client's event thread, which may lag behind
+            long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (timings.getCount(ZooKeeperRulePhase.CONNECT_CLIENT) < 2 && System.nanoTime() < deadlineNanos) {
+                Thread.sleep(10);
+            }
+        } finally {
+            rule.after();
+            ZooKeeperRuleListeners.removeListener(timings);
+        }
+
+        for (ZooKeeperRulePhase phase : ZooKeeperRulePhase.values()) {
+            boolean perClient = phase == ZooKeeperRulePhase.GET_CLIENT || phase == ZooKeeperRulePhase.CONNECT_CLIENT;
+            assertEquals(phase.toString(), perClient ? 2 : 1, timings.getCount(phase));
+        }
+
+        // the phases are nested in each other
+        assertTrue(timings.getTotal(ZooKeeperRulePhase.BEFORE, TimeUnit.NANOSECONDS)
+                >= timings.getTotal(ZooKeeperRulePhase.START_SERVER, TimeUnit.NANOSECONDS));
+        assertTrue(timings.getTotal(ZooKeeperRulePhase.START_SERVER, TimeUnit.NANOSECONDS)
+                >= timings.getTotal(ZooKeeperRulePhase.GET_SERVER, TimeUnit.NANOSECONDS));
+        assertTrue(timings.getSummary().contains("LocalZooKeeperRule"));
+    }
+
+    @Test
+    public void testExpireSession() throws Exception {
+        LocalZooKeeperRule rule = new LocalZooKeeperRule("namespace1", 0, new DefaultZooKeeperRuleConfig());
+        try {
+            rule.before();
+
+            CuratorFramework client = rule.getConnectedClient(10, TimeUnit.SECONDS);
+            client.create().withMode(CreateMode.EPHEMERAL).forPath("/ephemeral");
+            ConnectionStateRecorder states = new ConnectionStateRecorder(client);
+
+            rule.expireSession(client);
+
+            assertNull(rule.getClient().checkExists().forPath("/ephemeral"));
+            assertTrue(states.await(ConnectionState.LOST, 10, TimeUnit.SECONDS));
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testPartition() throws Exception {
+        LocalZooKeeperRule rule = new LocalZooKeeperRule("namespace1", 0, new DefaultZooKeeperRuleConfig());
+        try {
+            rule.before();
+
+            CuratorFramework client = rule.getConnectedClient(10, TimeUnit.SECONDS);
+            client.create().withMode(CreateMode.EPHEMERAL).forPath("/ephemeral");
+            ConnectionStateRecorder states = new ConnectionStateRecorder(client);
+
+            long startNanos = System.nanoTime();
+            rule.partition(500, TimeUnit.MILLISECONDS);
+
+            assertTrue(states.await(ConnectionState.SUSPENDED, 10, TimeUnit.SECONDS));
+            assertTrue(states.await(ConnectionState.RECONNECTED, 10, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(500));
+
+            // the session outlived the partition
+            assertNotNull(client.checkExists().forPath("/ephemeral"));
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testRequestLatency() throws Exception {
+        LocalZooKeeperRule rule = new LocalZooKeeperRule("namespace1", 0, new InMemoryZooKeeperRuleConfig());
+        try {
+            rule.before();
+
+            CuratorFramework client = rule.getConnectedClient(10, TimeUnit.SECONDS);
+            client.create().forPath("/testpath");
+
+            rule.setRequestLatency(200, TimeUnit.MILLISECONDS);
+            long startNanos = System.nanoTime();
+            client.setData().forPath("/testpath", new byte[] { 1 });
+            client.setData().forPath("/testpath", new byte[] { 2 });
+            assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(400));
+
+            rule.stallRequests(300, TimeUnit.MILLISECONDS);
+            rule.setRequestLatency(0, TimeUnit.MILLISECONDS);
+            startNanos = System.nanoTime();
+            assertArrayEquals(new byte[] { 2 }, client.getData().forPath("/testpath"));
+            assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(300));
+
+            rule.clearFaults();
+            startNanos = System.nanoTime();
+            client.getData().forPath("/testpath");
+            assertTrue(System.nanoTime() - startNanos < TimeUnit.MILLISECONDS.toNanos(200));
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testServerStats() throws Exception {
+        SharedZooKeeperRule rule1 = new SharedZooKeeperRule("namespace1", 0, new InMemoryZooKeeperRuleConfig());
+        SharedZooKeeperRule rule2 = new SharedZooKeeperRule("namespace2", 0, new InMemoryZooKeeperRuleConfig());
+
+        try {
+            rule1.before();
+            rule2.before();
+
+            CuratorFramework client1 = rule1.getConnectedClient(10, TimeUnit.SECONDS);
+            CuratorFramework client2 = rule2.getConnectedClient(10, TimeUnit.SECONDS);
+            client1.create().forPath("/a");
+            client2.create().forPath("/b");
+            rule1.resetServerStats();
+
+            client1.create().forPath("/a/1");
+            client1.create().forPath("/a/2");
+            client1.getData().watched().forPath("/a");
+            client2.checkExists().forPath("/b");
+
+            assertEquals(ImmutableMap.of("create", 2L, "getData", 1L), rule1.getRequestCounts());
+            assertEquals(ImmutableMap.of("exists", 1L), rule2.getRequestCounts());
+
+            ZooKeeperServerStats stats = rule1.getServerStats();
+            assertEquals(2, stats.getAliveConnections());
+            assertEquals(1, stats.getWatchCount());
+            assertTrue(stats.getNodeCount() >= 6);
+            assertTrue(stats.getPacketsReceived() >= 4);
+            assertTrue(stats.getMaxLatencyMillis() >= stats.getMinLatencyMillis());
+        } finally {
+            rule2.after();
+            rule1.after();
+        }
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        SharedZooKeeperRule rule = new SharedZooKeeperRule("namespace", 0, new InMemoryZooKeeperRuleConfig());
+
+        try {
+            rule.before();
+
+            final int parents = 10;
+            final int children = 1000;
+            BulkLoadResult result = rule.bulkLoad(new Iterable<ZNode>() {
+                @Override
+                public Iterator<ZNode> iterator() {
+                    return new AbstractIterator<ZNode>() {
+                        private int next = 0;
+
+                        @Override
+                        protected ZNode computeNext() {
+                            if (next == parents * (children + 1)) {
+                                return endOfData();
+                            }
+
+                            int parent = next / (children + 1);
+                            int child = next++ % (children + 1);
+                            return child == 0
+                                    ? ZNode.of("/p" + parent)
+                                    : ZNode.of("/p" + parent + "/c" + child, new byte[] { (byte) child });
+                        }
+                    };
+                }
+            }, 100);
+
+            assertEquals(parents * (children + 1), result.getNodeCount());
+            assertTrue(result.getThroughput() > 0);
+
+            CuratorFramework client = rule.getClient();
+            assertEquals(parents, client.getChildren().forPath("/").size());
+            assertEquals(children, client.getChildren().forPath("/p3").size());
+            assertArrayEquals(new byte[] { 7 }, client.getData().forPath("/p3/c7"));
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testBulkLoadFromFile() throws Exception {
+        SharedZooKeeperRule rule = new SharedZooKeeperRule("namespace", 0, new InMemoryZooKeeperRuleConfig());
+        File file = temporaryFolder.newFile();
+        Files.write("/a\n/a/b\tdata\n\n/c\n", file, Charsets.UTF_8);
+
+        try {
+            rule.before();
+
+            assertEquals(3, rule.bulkLoad(file).getNodeCount());
+
+            CuratorFramework client = rule.getClient();
+            assertArrayEquals("data".getBytes(Charsets.UTF_8), client.getData().forPath("/a/b"));
+            assertNotNull(client.checkExists().forPath("/c"));
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testBulkLoadMissingParent() throws Exception {
+        SharedZooKeeperRule rule = new SharedZooKeeperRule("namespace", 0, new InMemoryZooKeeperRuleConfig());
+
+        try {
+            rule.before();
+
+            rule.bulkLoad(ImmutableList.of(ZNode.of("/a"), ZNode.of("/b/c")));
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof KeeperException.NoNodeException);
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testBulkLoadIteratorFailure() throws Exception {
+        SharedZooKeeperRule rule = new SharedZooKeeperRule("namespace", 0, new InMemoryZooKeeperRuleConfig());
+        final int nodes = 20000;
+
+        try {
+            rule.before();
+            // creates the namespace
+            rule.getClient().checkExists().forPath("/");
+            int nodeCount = rule.getServerStats().getNodeCount();
+
+            try {
+                rule.bulkLoad(new Iterable<ZNode>() {
+                    @Override
+                    public Iterator<ZNode> iterator() {
+                        return new AbstractIterator<ZNode>() {
+                            private int next = 0;
+
+                            @Override
+                            protected ZNode computeNext() {
+                                if (next == nodes) {
+                                    throw new IllegalStateException("failed to read nodes");
+                                }
+                                return ZNode.of("/n" + next++);
+                            }
+                        };
+                    }
+                }, nodes);
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("failed to read nodes", e.getMessage());
+            }
+
+            // the creates sent before the failure have all completed
+            assertEquals(nodeCount + nodes, rule.getServerStats().getNodeCount());
+
+            // a path rejected before it is sent doesn't leave a create to wait for
+            try {
+                rule.bulkLoad(ImmutableList.of(ZNode.of("/a"), ZNode.of("/a//b")), 1);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            assertNotNull(rule.getClient().checkExists().forPath("/a"));
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testFork() throws Exception {
+        ZooKeeperRuleConfig ruleConfig = new InMemoryZooKeeperRuleConfig().withForkableNamespaces();
+        SharedZooKeeperRule base = new SharedZooKeeperRule("base", 20300, ruleConfig);
+        ZooKeeperRule fork1 = new SharedZooKeeperRule("fork1", 20300, ruleConfig).withFork("base");
+        ZooKeeperRule fork2 = new SharedZooKeeperRule("fork2", 20300, ruleConfig).withFork("base");
+
+        try {
+            base.before();
+            List<ZNode> nodes = Lists.newArrayList();
+            for (int i = 0; i < 10; i++) {
+                nodes.add(ZNode.of("/p" + i));
+                for (int j = 0; j < 100; j++) {
+                    nodes.add(ZNode.of("/p" + i + "/c" + j, new byte[] { (byte) j }));
+                }
+            }
+            base.bulkLoad(nodes);
+            base.getClient().create().withMode(CreateMode.EPHEMERAL).forPath("/ephemeral");
+            base.getClient().create().withMode(CreateMode.EPHEMERAL).forPath("/p6/ephemeral");
+            int baseNodeCount = base.getServerStats().getNodeCount();
+
+            try {
+                fork1.before();
+                fork2.before();
+
+                // only the roots of the forks were created
+                assertEquals(baseNodeCount + 2, base.getServerStats().getNodeCount());
+
+                CuratorFramework client1 = fork1.getClient();
+                assertEquals(10, client1.getChildren().forPath("/").size());
+                assertArrayEquals(new byte[] { 7 }, client1.getData().forPath("/p3/c7"));
+                client1.setData().forPath("/p3/c7", new byte[] { 1 });
+                client1.delete().forPath("/p4/c1");
+                client1.create().forPath("/p5/new");
+                assertEquals(99, client1.getChildren().forPath("/p4").size());
+                assertEquals(101, client1.getChildren().forPath("/p5").size());
+                assertEquals(100, client1.getChildren().forPath("/p6").size());
+                assertEquals(100, client1.checkExists().forPath("/p6").getNumChildren());
+                assertNull(client1.checkExists().forPath("/ephemeral"));
+
+                CuratorFramework client2 = fork2.getClient();
+                assertArrayEquals(new byte[] { 7 }, client2.getData().forPath("/p3/c7"));
+                assertNotNull(client2.checkExists().forPath("/p4/c1"));
+                assertNull(client2.checkExists().forPath("/p5/new"));
+                assertArrayEquals(new byte[] { 7 }, base.getClient().getData().forPath("/p3/c7"));
+
+                fork1.reset();
+                assertArrayEquals(new byte[] { 7 }, client1.getData().forPath("/p3/c7"));
+                assertNotNull(client1.checkExists().forPath("/p4/c1"));
+                assertNull(client1.checkExists().forPath("/p5/new"));
+            } finally {
+                fork2.after();
+                fork1.after();
+            }
+
+            CuratorFramework client = base.getClient().usingNamespace(null);
+            assertNull(client.checkExists().forPath("/fork1"));
+            assertNull(client.checkExists().forPath("/fork2"));
+            assertEquals(100, client.getChildren().forPath("/base/p4").size());
+        } finally {
+            base.after();
+        }
+    }
+
+    @Test
+    public void testForkNeedsForkableNamespaces() throws Exception {
+        ZooKeeperRule rule = new LocalZooKeeperRule("namespace1", 0, new InMemoryZooKeeperRuleConfig()).withFork("base");
+        try {
+            rule.before();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("forkable"));
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testEventLatencyRecorder() throws Exception {
+        EventLatencyRecorder recorder = new EventLatencyRecorder(10, TimeUnit.SECONDS);
+        SharedZooKeeperRule rule = new SharedZooKeeperRule("namespace", 0, new InMemoryZooKeeperRuleConfig());
+        rule.withEventLatencyRecorder(recorder);
+
+        try {
+            rule.before();
+
+            CuratorFramework watcher = rule.getConnectedClient(10, TimeUnit.SECONDS);
+            CuratorFramework writer = rule.getConnectedClient(10, TimeUnit.SECONDS);
+            writer.create().forPath("/a");
+
+            for (int i = 0; i < 20; i++) {
+                watcher.getData().watched().forPath("/a");
+                recorder.writeStarted("/a");
+                writer.setData().forPath("/a", new byte[] { (byte) i });
+                assertTrue(recorder.awaitEvents(10, TimeUnit.SECONDS));
+            }
+
+            assertEquals(20, recorder.getEventCount());
+            assertEquals(20, recorder.getEventCount("/a"));
+            assertEquals(0, recorder.getEventCount("/b"));
+            assertEquals(0, recorder.getLateEventCount());
+            assertEquals(0, recorder.getMissedEventCount());
+            assertEquals(0, recorder.getUnmatchedEventCount());
+            assertTrue(recorder.getPercentile(50, TimeUnit.NANOSECONDS) > 0);
+            assertEquals(2L, (long) recorder.getConnectionStateChanges().get(ConnectionState.CONNECTED));
+        } finally {
+            rule.after();
+        }
+    }
+
+    @Test
+    public void testResetBeforeEachTest() {
+        Result result = JUnitCore.runClasses(ResetBeforeEachTestExample.class);
+
+        assertTrue(result.getFailures().toString(), result.wasSuccessful());
+        assertEquals(2, result.getRunCount());
+    }
+
+    /**
+     * Each test passes only if it starts with an empty namespace.
+     */
+    public static final class ResetBeforeEachTestExample {
+
+        @ClassRule
+        public static final ZooKeeperRule ZOOKEEPER =
+                new LocalZooKeeperRule("namespace1", 0, new DefaultZooKeeperRuleConfig());
+
+        @Rule
+        public final TestRule reset = ZOOKEEPER.resetBeforeEachTest();
+
+        @Test
+        public void testFirst() throws Exception {
+            createInEmptyNamespace();
+        }
+
+        @Test
+        public void testSecond() throws Exception {
+            createInEmptyNamespace();
+        }
+
+        private static void createInEmptyNamespace() throws Exception {
+            CuratorFramework client = ZOOKEEPER.getClient();
+            client.create().creatingParentsIfNeeded().forPath("/testpath/child");
+            assertEquals(1, client.getChildren().forPath("/").size());
+        }
+    }
+
+    /**
+     * Starts its server by overriding {@link ZooKeeperRule#before()}, as subclasses written before
+     * {@link ZooKeeperRule#startServer()} existed do.
+     */
+    private static final class BeforeStartedZooKeeperRule extends ZooKeeperRule {
+        private ServerCnxnFactory cnxnFactory;
+
+        private BeforeStartedZooKeeperRule() {
+            super("namespace1", 0, new InMemoryZooKeeperRuleConfig());
+        }
+
+        @Override
+        protected void before() {
+            super.before();
+            cnxnFactory = ruleConfig.getServer(port);
+        }
+
+        @Override
+        protected ServerCnxnFactory getCnxnFactory() {
+            return cnxnFactory;
+        }
+
+        @Override
+        protected void closeServer() {
+            cnxnFactory.shutdown();
+        }
+    }
+
+    /**
+     * Records the connection states a client goes through.
+     */
+    private static final class ConnectionStateRecorder implements ConnectionStateListener {
+        private final BlockingQueue<ConnectionState> states = new LinkedBlockingQueue<>();
+
+        private ConnectionStateRecorder(CuratorFramework client) {
+            client.getConnectionStateListenable().addListener(this);
+        }
+
+        @Override
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            states.add(newState);
+        }
+
+        /**
+         * Waits for the given state, skipping over any other states.
+         */
+        private boolean await(ConnectionState expected, long timeout, TimeUnit unit) throws InterruptedException {
+            long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+            while (true) {
+                ConnectionState state = states.poll(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (state == null) {
+                    return false;
+                } else if (state == expected) {
+                    return true;
+                }
+            }
+        }
+    }
+}